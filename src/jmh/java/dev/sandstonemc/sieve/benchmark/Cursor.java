@@ -0,0 +1,24 @@
+package dev.sandstonemc.sieve.benchmark;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Walks through the inputs of a benchmark so each call looks up a different name. Each benchmark thread has its own
+ * cursor.
+ */
+@State(Scope.Thread)
+public class Cursor {
+
+    private int index;
+
+    /**
+     * @param count The number of inputs.
+     * @return The index of the next input.
+     */
+    int next(int count) {
+        final int next = this.index;
+        this.index = next + 1 == count ? 0 : next + 1;
+        return next;
+    }
+}
@@ -0,0 +1,68 @@
+package dev.sandstonemc.sieve.benchmark;
+
+import dev.sandstonemc.sieve.GuestClassProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the checks made for every class name a guest adds.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GuestClassProviderBenchmark {
+
+    /**
+     * The number of names to check, and the number of reserved prefixes in addition to the JDK.
+     */
+    @Param({"100", "10000"})
+    public int classCount;
+
+    private GuestClassProvider guest;
+    private String[] names;
+    private List<String> nameList;
+
+    @Setup
+    public void setup() {
+        this.guest = new GuestClassProvider();
+        this.guest.reserveJDK();
+        this.names = new String[this.classCount];
+        for (int index = 0; index < this.classCount; index++) {
+            this.guest.reserve("net.reserved" + index + ".");
+            this.names[index] = SyntheticClasses.name(index);
+        }
+        this.nameList = Arrays.asList(this.names);
+    }
+
+    @Benchmark
+    public boolean isReserved(Cursor cursor) {
+        return this.guest.isReserved(this.names[cursor.next(this.classCount)]);
+    }
+
+    @Benchmark
+    public boolean validateGuestClassName(Cursor cursor) {
+        return GuestClassProvider.validateGuestClassName(this.names[cursor.next(this.classCount)]);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int validateGuestClassNames() {
+        return GuestClassProvider.validateGuestClassNames(this.nameList).size();
+    }
+}
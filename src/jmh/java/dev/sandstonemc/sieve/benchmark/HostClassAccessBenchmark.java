@@ -0,0 +1,80 @@
+package dev.sandstonemc.sieve.benchmark;
+
+import dev.sandstonemc.sieve.HostClassAccess;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures host access checks, which run every time a guest resolves a class that it does not define itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HostClassAccessBenchmark {
+
+    /**
+     * The number of individually allowed classes, in addition to the safe JDK classes.
+     */
+    @Param({"100", "10000"})
+    public int classCount;
+
+    private HostClassAccess host;
+    private String[] allowed;
+    private String[] denied;
+
+    @Setup
+    public void setup() {
+        this.host = new HostClassAccess();
+        this.host.allowJDK();
+        this.host.allowPackage("org.joml");
+        this.host.allowPrefix("com.google.common.collect.");
+        this.host.deny("com.google.common.collect.Serialization");
+        this.allowed = new String[this.classCount];
+        this.denied = new String[this.classCount];
+        for (int index = 0; index < this.classCount; index++) {
+            this.allowed[index] = "net.minecraft.p" + (index % 64) + ".Allowed" + index;
+            this.denied[index] = "net.minecraft.p" + (index % 64) + ".Denied" + index;
+            this.host.allow(this.allowed[index]);
+        }
+        this.host.freeze();
+    }
+
+    @Benchmark
+    public boolean exactAllowed(Cursor cursor) {
+        return this.host.isAllowed(this.allowed[cursor.next(this.classCount)]);
+    }
+
+    @Benchmark
+    public boolean exactMissing(Cursor cursor) {
+        return this.host.isAllowed(this.denied[cursor.next(this.classCount)]);
+    }
+
+    @Benchmark
+    public boolean jdkAllowed() {
+        return this.host.isAllowed("java.util.ArrayList");
+    }
+
+    @Benchmark
+    public boolean packageAllowed() {
+        return this.host.isAllowed("org.joml.Vector3f");
+    }
+
+    @Benchmark
+    public boolean prefixDenied() {
+        return this.host.isAllowed("com.google.common.collect.Serialization");
+    }
+}
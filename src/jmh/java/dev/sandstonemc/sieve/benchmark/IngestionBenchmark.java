@@ -0,0 +1,56 @@
+package dev.sandstonemc.sieve.benchmark;
+
+import dev.sandstonemc.sieve.GuestClassProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures adding a directory of loose class files to a provider.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IngestionBenchmark {
+
+    @Param({"1000", "10000"})
+    public int classCount;
+
+    private Path root;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        this.root = Files.createTempDirectory("sieve-bench");
+        SyntheticClasses.write(this.root, this.classCount);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        SyntheticClasses.delete(this.root);
+    }
+
+    @Benchmark
+    public GuestClassProvider addDir() {
+        final GuestClassProvider guest = new GuestClassProvider();
+        guest.reserveJDK();
+        guest.addDir(this.root);
+        return guest;
+    }
+}
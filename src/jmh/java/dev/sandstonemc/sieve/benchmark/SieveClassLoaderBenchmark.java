@@ -0,0 +1,114 @@
+package dev.sandstonemc.sieve.benchmark;
+
+import dev.sandstonemc.sieve.GuestClassProvider;
+import dev.sandstonemc.sieve.HostClassAccess;
+import dev.sandstonemc.sieve.SieveClassLoader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a cold start through {@link SieveClassLoader}, where every guest class is defined by a fresh loader using a
+ * number of threads. Lookups of classes that are already loaded are measured by
+ * {@link SieveClassLoaderLookupBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SieveClassLoaderBenchmark {
+
+    @Param({"1000"})
+    public int classCount;
+
+    /**
+     * The number of threads used to define classes during a cold start.
+     */
+    @Param({"1", "4", "16"})
+    public int threads;
+
+    /**
+     * How guest class bytes are stored. Off-heap storage is not measured as classes are released once defined, and
+     * the cold start defines every class again.
+     */
+    @Param({"HEAP", "COMPRESSED"})
+    public GuestClassProvider.Storage storage;
+
+    private Path root;
+    private String[] names;
+    private HostClassAccess host;
+    private GuestClassProvider guest;
+    private SieveClassLoader coldLoader;
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        this.root = Files.createTempDirectory("sieve-bench");
+        SyntheticClasses.write(this.root, this.classCount);
+        this.host = new HostClassAccess();
+        this.host.allowJDK();
+        this.host.freeze();
+        this.guest = new GuestClassProvider();
+        this.guest.reserveJDK();
+        this.guest.setStorage(this.storage);
+        this.guest.addDir(this.root);
+        this.names = new String[this.classCount];
+        for (int index = 0; index < this.classCount; index++) {
+            this.names[index] = SyntheticClasses.name(index);
+        }
+        this.executor = Executors.newFixedThreadPool(this.threads);
+    }
+
+    @Setup(Level.Invocation)
+    public void newLoader() {
+        this.coldLoader = new SieveClassLoader(this.guest, this.host);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.executor.shutdownNow();
+        SyntheticClasses.delete(this.root);
+    }
+
+    @Benchmark
+    public int defineAll() throws Exception {
+        final SieveClassLoader loader = this.coldLoader;
+        final List<Future<Integer>> tasks = new ArrayList<>(this.threads);
+        for (int thread = 0; thread < this.threads; thread++) {
+            final int offset = thread;
+            tasks.add(this.executor.submit(() -> {
+                int loaded = 0;
+                for (int index = offset; index < this.classCount; index += this.threads) {
+                    loaded += loader.loadClass(this.names[index]) != null ? 1 : 0;
+                }
+                return loaded;
+            }));
+        }
+        int loaded = 0;
+        for (Future<Integer> task : tasks) {
+            loaded += task.get();
+        }
+        return loaded;
+    }
+}
@@ -0,0 +1,75 @@
+package dev.sandstonemc.sieve.benchmark;
+
+import dev.sandstonemc.sieve.GuestClassProvider;
+import dev.sandstonemc.sieve.HostClassAccess;
+import dev.sandstonemc.sieve.SieveClassLoader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures lookups through {@link SieveClassLoader} of classes that are already loaded. These do not depend on how
+ * class bytes are stored or how many threads defined them, so they are measured once rather than for every
+ * combination in {@link SieveClassLoaderBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SieveClassLoaderLookupBenchmark {
+
+    @Param({"1000"})
+    public int classCount;
+
+    private Path root;
+    private String[] names;
+    private SieveClassLoader loader;
+
+    @Setup
+    public void setup() throws Exception {
+        this.root = Files.createTempDirectory("sieve-bench");
+        SyntheticClasses.write(this.root, this.classCount);
+        final HostClassAccess host = new HostClassAccess();
+        host.allowJDK();
+        host.freeze();
+        final GuestClassProvider guest = new GuestClassProvider();
+        guest.reserveJDK();
+        guest.addDir(this.root);
+        this.loader = new SieveClassLoader(guest, host);
+        this.names = new String[this.classCount];
+        for (int index = 0; index < this.classCount; index++) {
+            this.names[index] = SyntheticClasses.name(index);
+            this.loader.loadClass(this.names[index]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        SyntheticClasses.delete(this.root);
+    }
+
+    @Benchmark
+    public Class<?> loadDefinedGuest(Cursor cursor) throws ClassNotFoundException {
+        return this.loader.loadClass(this.names[cursor.next(this.classCount)]);
+    }
+
+    @Benchmark
+    public Class<?> loadHost() throws ClassNotFoundException {
+        return this.loader.loadClass("java.util.ArrayList");
+    }
+}
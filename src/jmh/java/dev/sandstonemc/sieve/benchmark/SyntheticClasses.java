@@ -0,0 +1,102 @@
+package dev.sandstonemc.sieve.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Creates minimal class files for benchmarks. Each class is public, extends {@link Object} and declares no members, so
+ * it can be defined without any other guest classes.
+ */
+final class SyntheticClasses {
+
+    private SyntheticClasses() {
+    }
+
+    /**
+     * Gets the fully qualified name of a synthetic class. Classes are spread over a few packages so lookups are not
+     * all in the same subtree.
+     *
+     * @param index The index of the class.
+     * @return The name of the class.
+     */
+    static String name(int index) {
+        return "com.example.bench.p" + (index % 16) + ".Synthetic" + index;
+    }
+
+    /**
+     * Creates the bytes of an empty class.
+     *
+     * @param name The fully qualified name of the class.
+     * @return The class file.
+     */
+    static byte[] create(String name) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(52);
+            out.writeShort(5);
+            out.writeByte(1);
+            out.writeUTF(name.replace('.', '/'));
+            out.writeByte(7);
+            out.writeShort(1);
+            out.writeByte(1);
+            out.writeUTF("java/lang/Object");
+            out.writeByte(7);
+            out.writeShort(3);
+            out.writeShort(0x0021); // public super
+            out.writeShort(2);
+            out.writeShort(4);
+            out.writeShort(0); // interfaces
+            out.writeShort(0); // fields
+            out.writeShort(0); // methods
+            out.writeShort(0); // attributes
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes synthetic classes to a directory using the normal package layout.
+     *
+     * @param root  The directory to write to.
+     * @param count The number of classes to write.
+     */
+    static void write(Path root, int count) {
+        try {
+            for (int index = 0; index < count; index++) {
+                final String name = name(index);
+                final Path file = root.resolve(name.replace('.', '/') + ".class");
+                Files.createDirectories(file.getParent());
+                Files.write(file, create(name));
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Deletes a directory created for a benchmark.
+     *
+     * @param root The directory to delete.
+     */
+    static void delete(Path root) {
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
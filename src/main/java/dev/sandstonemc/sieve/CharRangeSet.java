@@ -0,0 +1,121 @@
+package dev.sandstonemc.sieve;
+
+import java.util.Collection;
+
+/**
+ * An immutable open addressing set of strings that can be queried with a range of characters from a larger sequence.
+ * This allows part of a name, such as a single package segment, to be looked up without creating a substring.
+ */
+final class CharRangeSet {
+
+    private final String[] table;
+    private final int mask;
+    private final int size;
+
+    CharRangeSet(Collection<String> values) {
+        // The table is kept at most half full so probe sequences stay short.
+        int capacity = Integer.highestOneBit(Math.max(values.size(), 1) * 2 - 1) << 1;
+        this.table = new String[capacity];
+        this.mask = capacity - 1;
+        int size = 0;
+        for (String value : values) {
+            int slot = hash(value, 0, value.length()) & this.mask;
+            while (this.table[slot] != null && !this.table[slot].equals(value)) {
+                slot = (slot + 1) & this.mask;
+            }
+            if (this.table[slot] == null) {
+                this.table[slot] = value;
+                size++;
+            }
+        }
+        this.size = size;
+    }
+
+    /**
+     * Checks if the set contains the characters between two indexes of a sequence.
+     *
+     * @param chars The sequence to read from.
+     * @param start The index of the first character, inclusive.
+     * @param end   The index of the last character, exclusive.
+     * @return If the characters are in the set.
+     */
+    boolean contains(CharSequence chars, int start, int end) {
+        return this.slot(chars, start, end) >= 0;
+    }
+
+    /**
+     * Finds the slot holding the characters between two indexes of a sequence. Slots are stable for the lifetime of
+     * the set, so they can be used to index a parallel array of values.
+     *
+     * @param chars The sequence to read from.
+     * @param start The index of the first character, inclusive.
+     * @param end   The index of the last character, exclusive.
+     * @return The slot of the characters, or -1 if they are not in the set.
+     */
+    int slot(CharSequence chars, int start, int end) {
+        final int length = end - start;
+        int slot = hash(chars, start, end) & this.mask;
+        String value;
+        while ((value = this.table[slot]) != null) {
+            if (value.length() == length && regionMatches(value, chars, start)) {
+                return slot;
+            }
+            slot = (slot + 1) & this.mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the slot holding a string.
+     *
+     * @param value The string to find.
+     * @return The slot of the string, or -1 if it is not in the set.
+     */
+    int slot(String value) {
+        return this.slot(value, 0, value.length());
+    }
+
+    /**
+     * Checks if the set contains a string.
+     *
+     * @param value The string to check.
+     * @return If the string is in the set.
+     */
+    boolean contains(String value) {
+        return this.contains(value, 0, value.length());
+    }
+
+    /**
+     * @return The number of slots in the set. Every slot returned by {@link #slot(CharSequence, int, int)} is less
+     * than this.
+     */
+    int capacity() {
+        return this.table.length;
+    }
+
+    /**
+     * @return The number of strings in the set.
+     */
+    int size() {
+        return this.size;
+    }
+
+    private static boolean regionMatches(String value, CharSequence chars, int start) {
+        for (int index = 0; index < value.length(); index++) {
+            if (value.charAt(index) != chars.charAt(start + index)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Same as String#hashCode over the range, with the high bits mixed in
+    // because only the low bits select a slot.
+    static int hash(CharSequence chars, int start, int end) {
+        int hash = 0;
+        for (int index = start; index < end; index++) {
+            hash = 31 * hash + chars.charAt(index);
+        }
+        return hash ^ (hash >>> 16);
+    }
+}
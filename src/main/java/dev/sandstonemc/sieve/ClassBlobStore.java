@@ -0,0 +1,170 @@
+package dev.sandstonemc.sieve;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Stores class bytes by the SHA-256 hash of their contents, so identical classes added by many guest modules are kept
+ * once. Modules often shade the same libraries, and every copy of a class that was not relocated has the same bytes.
+ * A store is shared by giving it to each {@link GuestClassProvider} with
+ * {@link GuestClassProvider#setBlobStore(ClassBlobStore)}.
+ * <p>
+ * Each shared copy, or blob, also keeps its hash and the parts of the class read by verification, so a class shared by
+ * many modules is only hashed and read once. A blob is held by the providers that reference it, once every provider
+ * referencing it has been discarded the blob can be reclaimed.
+ */
+public final class ClassBlobStore {
+
+    private final Map<VerificationCache.Digest, BlobReference> blobs = new ConcurrentHashMap<>();
+    private final ReferenceQueue<Blob> reclaimed = new ReferenceQueue<>();
+    private final LongAdder classesStored = new LongAdder();
+    private final LongAdder classesDeduplicated = new LongAdder();
+    private final LongAdder bytesDeduplicated = new LongAdder();
+
+    /**
+     * Gets the blob holding the given bytes, storing them if no identical bytes are held yet.
+     *
+     * @param bytes   The bytes of the class. The array must not be modified afterward.
+     * @param storage Stores the bytes of a new blob, such as in compressed form.
+     * @return The blob holding the bytes.
+     */
+    GuestClassEntry intern(byte[] bytes, Function<byte[], GuestClassEntry> storage) {
+        this.expunge();
+        this.classesStored.increment();
+        final VerificationCache.Digest digest = VerificationCache.Digest.hash(ByteBuffer.wrap(bytes));
+        while (true) {
+            final BlobReference existing = this.blobs.get(digest);
+            final Blob shared = existing != null ? existing.get() : null;
+            if (shared != null) {
+                this.classesDeduplicated.increment();
+                this.bytesDeduplicated.add(bytes.length);
+                return shared;
+            }
+            // Two threads storing the same new class may both store it, only
+            // the blob that is published first is kept.
+            final Blob blob = new Blob(storage.apply(bytes), digest);
+            final BlobReference reference = new BlobReference(blob, bytes.length, this.reclaimed);
+            if (existing == null ? this.blobs.putIfAbsent(digest, reference) == null : this.blobs.replace(digest, existing, reference)) {
+                return blob;
+            }
+        }
+    }
+
+    /**
+     * Takes a snapshot of how much the store has deduplicated. Classes that are stored while the snapshot is taken may
+     * or may not be included.
+     *
+     * @return The current statistics.
+     */
+    public Stats getStats() {
+        this.expunge();
+        int blobs = 0;
+        long bytes = 0;
+        for (BlobReference reference : this.blobs.values()) {
+            if (!reference.refersTo(null)) {
+                blobs++;
+                bytes += reference.size;
+            }
+        }
+        return new Stats(this.classesStored.sum(), this.classesDeduplicated.sum(), this.bytesDeduplicated.sum(), blobs, bytes);
+    }
+
+    // Removes the blobs that are no longer referenced by any provider.
+    private void expunge() {
+        Reference<? extends Blob> reference;
+        while ((reference = this.reclaimed.poll()) != null) {
+            final BlobReference blob = (BlobReference) reference;
+            this.blobs.remove(blob.digest, blob);
+        }
+    }
+
+    /**
+     * How much a store has deduplicated.
+     *
+     * @param classesStored       The number of classes given to the store.
+     * @param classesDeduplicated The number of classes that were already held, and were not stored again.
+     * @param bytesDeduplicated   The total size of the classes that were not stored again.
+     * @param blobs               The number of distinct classes currently held.
+     * @param bytes               The total size of the distinct classes currently held, before any compression.
+     */
+    public record Stats(long classesStored, long classesDeduplicated, long bytesDeduplicated, int blobs, long bytes) {
+    }
+
+    /**
+     * A class held by the store. Reads are passed to the entry created by the provider that first stored the class.
+     */
+    private static final class Blob extends GuestClassEntry {
+
+        private final GuestClassEntry stored;
+        private final VerificationCache.Digest digest;
+
+        /**
+         * The summary read by the last verification. This is softly held, as it is only needed again if another module
+         * with the same class is verified.
+         */
+        private volatile SoftReference<ClassFile.Summary> summary;
+
+        private Blob(GuestClassEntry stored, VerificationCache.Digest digest) {
+            this.stored = stored;
+            this.digest = digest;
+        }
+
+        @Override
+        ByteBuffer buffer() {
+            return this.stored.buffer();
+        }
+
+        @Override
+        ByteBuffer scratchBuffer() {
+            return this.stored.scratchBuffer();
+        }
+
+        @Override
+        byte[] bytes() {
+            return this.stored.bytes();
+        }
+
+        @Override
+        long checksum() {
+            return this.stored.checksum();
+        }
+
+        @Override
+        VerificationCache.Digest knownDigest() {
+            return this.digest;
+        }
+
+        @Override
+        ClassFile.Summary summary() {
+            final SoftReference<ClassFile.Summary> reference = this.summary;
+            ClassFile.Summary summary = reference != null ? reference.get() : null;
+            if (summary == null) {
+                summary = this.stored.summary();
+                this.summary = new SoftReference<>(summary);
+            }
+            return summary;
+        }
+    }
+
+    /**
+     * A weak reference to a blob that can remove itself from the store once the blob is reclaimed.
+     */
+    private static final class BlobReference extends WeakReference<Blob> {
+
+        private final VerificationCache.Digest digest;
+        private final int size;
+
+        private BlobReference(Blob blob, int size, ReferenceQueue<Blob> queue) {
+            super(blob, queue);
+            this.digest = blob.digest;
+            this.size = size;
+        }
+    }
+}
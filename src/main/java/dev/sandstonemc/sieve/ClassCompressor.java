@@ -0,0 +1,186 @@
+package dev.sandstonemc.sieve;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the classes of a single guest module so they can be kept in memory at a fraction of their size. Classes
+ * from the same module share package names, class names and descriptors, so the first classes compressed are sampled
+ * into a preset dictionary that every later class is compressed against. Each class is still compressed on its own so
+ * loading a class only decompresses that class.
+ */
+final class ClassCompressor {
+
+    /**
+     * The size of the dictionary. This is the largest dictionary deflate can use.
+     */
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    /**
+     * The number of bytes sampled from the start of each class. The start of a class holds most of its constant pool,
+     * which is where strings shared with other classes are found.
+     */
+    private static final int SAMPLE_SIZE = 1024;
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private final byte[] samples = new byte[DICTIONARY_SIZE];
+    private int sampled;
+    private volatile byte[] dictionary;
+
+    /**
+     * Compresses the bytes of a class.
+     *
+     * @param bytes The bytes of the class.
+     * @return An entry holding the compressed class.
+     */
+    GuestClassEntry compress(byte[] bytes) {
+        final byte[] dictionary = this.sample(bytes);
+        final Deflater deflater = SCRATCH.get().deflater;
+        deflater.reset();
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(bytes);
+        deflater.finish();
+        byte[] compressed = new byte[bytes.length / 2 + 64];
+        int size = 0;
+        while (!deflater.finished()) {
+            if (size == compressed.length) {
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            size += deflater.deflate(compressed, size, compressed.length - size);
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return new Entry(Arrays.copyOf(compressed, size), dictionary, bytes.length, crc.getValue());
+    }
+
+    // Classes are sampled until the dictionary is full. The classes compressed
+    // while sampling are compressed without a dictionary.
+    private byte[] sample(byte[] bytes) {
+        final byte[] dictionary = this.dictionary;
+        if (dictionary != null) {
+            return dictionary;
+        }
+        synchronized (this.samples) {
+            if (this.dictionary == null) {
+                final int length = Math.min(Math.min(bytes.length, SAMPLE_SIZE), DICTIONARY_SIZE - this.sampled);
+                System.arraycopy(bytes, 0, this.samples, this.sampled, length);
+                this.sampled += length;
+                if (this.sampled == DICTIONARY_SIZE) {
+                    this.dictionary = this.samples;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Decompresses raw deflate data into an array using an inflater owned by the current thread.
+     *
+     * @param data       The compressed data.
+     * @param dictionary The preset dictionary the data was compressed with, or null if there is none.
+     * @param target     The array to decompress into.
+     * @param length     The number of bytes to decompress.
+     * @return The number of bytes decompressed. This is less than the length if the data was truncated.
+     * @throws DataFormatException If the data is corrupt.
+     */
+    static int inflate(ByteBuffer data, byte[] dictionary, byte[] target, int length) throws DataFormatException {
+        final Inflater inflater = SCRATCH.get().inflater;
+        inflater.reset();
+        if (dictionary != null) {
+            inflater.setDictionary(dictionary);
+        }
+        inflater.setInput(data);
+        int read = 0;
+        while (read < length && !inflater.finished()) {
+            final int inflated = inflater.inflate(target, read, length - read);
+            if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                break;
+            }
+            read += inflated;
+        }
+        return read;
+    }
+
+    /**
+     * Gets an array owned by the current thread that is at least the given size. The array is reused by the next
+     * call on the same thread.
+     *
+     * @param size The minimum size of the array.
+     * @return The array.
+     */
+    static byte[] scratch(int size) {
+        final Scratch scratch = SCRATCH.get();
+        if (scratch.buffer.length < size) {
+            scratch.buffer = new byte[Math.max(size, scratch.buffer.length * 2)];
+        }
+        return scratch.buffer;
+    }
+
+    /**
+     * The deflate state and decompression buffer of a single thread. These are kept for the life of the thread so
+     * loading a class does not allocate native memory or a new array.
+     */
+    private static final class Scratch {
+
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        private final Inflater inflater = new Inflater(true);
+        private byte[] buffer = new byte[16 * 1024];
+    }
+
+    /**
+     * A class compressed with raw deflate.
+     */
+    private static final class Entry extends GuestClassEntry {
+
+        private final byte[] data;
+        private final byte[] dictionary;
+        private final int size;
+        private final long crc;
+
+        private Entry(byte[] data, byte[] dictionary, int size, long crc) {
+            this.data = data;
+            this.dictionary = dictionary;
+            this.size = size;
+            this.crc = crc;
+        }
+
+        @Override
+        ByteBuffer buffer() {
+            return ByteBuffer.wrap(this.inflate(new byte[this.size]));
+        }
+
+        @Override
+        ByteBuffer scratchBuffer() {
+            return ByteBuffer.wrap(this.inflate(scratch(this.size)), 0, this.size);
+        }
+
+        @Override
+        byte[] bytes() {
+            return this.inflate(new byte[this.size]);
+        }
+
+        @Override
+        long checksum() {
+            return this.crc;
+        }
+
+        private byte[] inflate(byte[] target) {
+            try {
+                if (ClassCompressor.inflate(ByteBuffer.wrap(this.data), this.dictionary, target, this.size) != this.size) {
+                    throw new IllegalStateException("Compressed class data is truncated.");
+                }
+                return target;
+            }
+            catch (DataFormatException e) {
+                throw new IllegalStateException("Compressed class data is corrupt.", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,632 @@
+package dev.sandstonemc.sieve;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A minimal reader for the parts of a class file that reference other classes. The constant pool, the descriptors of
+ * fields and methods, and the class operands of bytecode instructions are read, other attributes are skipped. The
+ * buffer is read in place using absolute reads, the caller must not modify it while the class file is in use.
+ */
+final class ClassFile {
+
+    static final int CONSTANT_UTF8 = 1;
+    static final int CONSTANT_INTEGER = 3;
+    static final int CONSTANT_FLOAT = 4;
+    static final int CONSTANT_LONG = 5;
+    static final int CONSTANT_DOUBLE = 6;
+    static final int CONSTANT_CLASS = 7;
+    static final int CONSTANT_STRING = 8;
+    static final int CONSTANT_FIELD_REF = 9;
+    static final int CONSTANT_METHOD_REF = 10;
+    static final int CONSTANT_INTERFACE_METHOD_REF = 11;
+    static final int CONSTANT_NAME_AND_TYPE = 12;
+    static final int CONSTANT_METHOD_HANDLE = 15;
+    static final int CONSTANT_METHOD_TYPE = 16;
+    static final int CONSTANT_DYNAMIC = 17;
+    static final int CONSTANT_INVOKE_DYNAMIC = 18;
+    static final int CONSTANT_MODULE = 19;
+    static final int CONSTANT_PACKAGE = 20;
+
+    private static final int MAGIC = 0xCAFEBABE;
+
+    private final ByteBuffer buffer;
+    private final int start;
+
+    /**
+     * The offset of each constant pool entry, pointing at its tag. Index zero
+     * and the unused slot after long and double constants are zero.
+     */
+    private final int[] constants;
+    private final int thisClass;
+    private final int superClass;
+    private final int[] interfaces;
+
+    /**
+     * The offset of the first byte after the constant pool.
+     */
+    private final int constantsEnd;
+
+    /**
+     * The constant pool indexes of the descriptors of every declared field and
+     * method.
+     */
+    private final int[] memberDescriptors;
+
+    /**
+     * The constant pool indexes of the names of every declared field and
+     * method, in the same order as the descriptors.
+     */
+    private final int[] memberNames;
+
+    /**
+     * Class constants that will be resolved when the class is loaded or its
+     * code runs. Class constants that are only named by attributes such as
+     * InnerClasses are never resolved by the JVM and are not included.
+     */
+    private final BitSet usedClasses;
+
+    /**
+     * Field and method references that are used by bytecode instructions or
+     * by method handles that guest code can invoke. Method handles that are
+     * only used to bootstrap a dynamic call site are linked by the JVM and are
+     * not included.
+     */
+    private final BitSet usedMembers;
+
+    /**
+     * The offset of the first byte after the class file.
+     */
+    private final int end;
+
+    /**
+     * The largest constant pool index referenced by a constant, a bytecode
+     * instruction or a bootstrap method. A valid class only references its
+     * own constants, so this is less than the number of constants.
+     */
+    private int maxReference;
+
+    private ClassFile(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.start = buffer.position();
+        if (this.u4(0) != MAGIC) {
+            throw new ClassFormatError("Incompatible magic value " + Integer.toHexString(this.u4(0)) + ".");
+        }
+        final int count = this.u2(8);
+        this.constants = new int[count];
+        int offset = 10;
+        for (int index = 1; index < count; index++) {
+            this.constants[index] = offset;
+            final int tag = this.u1(offset);
+            switch (tag) {
+                case CONSTANT_UTF8 -> offset += 3 + this.u2(offset + 1);
+                case CONSTANT_CLASS, CONSTANT_STRING, CONSTANT_METHOD_TYPE, CONSTANT_MODULE, CONSTANT_PACKAGE -> {
+                    this.reference(this.u2(offset + 1));
+                    offset += 3;
+                }
+                case CONSTANT_METHOD_HANDLE -> {
+                    this.reference(this.u2(offset + 2));
+                    offset += 4;
+                }
+                case CONSTANT_FIELD_REF, CONSTANT_METHOD_REF, CONSTANT_INTERFACE_METHOD_REF, CONSTANT_NAME_AND_TYPE -> {
+                    this.reference(this.u2(offset + 1));
+                    this.reference(this.u2(offset + 3));
+                    offset += 5;
+                }
+                case CONSTANT_DYNAMIC, CONSTANT_INVOKE_DYNAMIC -> {
+                    this.reference(this.u2(offset + 3));
+                    offset += 5;
+                }
+                case CONSTANT_INTEGER, CONSTANT_FLOAT -> offset += 5;
+                case CONSTANT_LONG, CONSTANT_DOUBLE -> {
+                    offset += 9;
+                    index++;
+                }
+                default -> throw new ClassFormatError("Unknown constant pool tag " + tag + " at index " + index + ".");
+            }
+        }
+        this.constantsEnd = offset;
+        this.usedClasses = new BitSet(count);
+        this.usedMembers = new BitSet(count);
+        this.thisClass = this.u2(offset + 2);
+        this.superClass = this.u2(offset + 4);
+        this.useClass(this.superClass);
+        offset += 6;
+        this.interfaces = new int[this.u2(offset)];
+        for (int index = 0; index < this.interfaces.length; index++) {
+            this.interfaces[index] = this.u2(offset + 2 + 2 * index);
+            this.useClass(this.interfaces[index]);
+        }
+        offset += 2 + 2 * this.interfaces.length;
+        final IntList names = new IntList();
+        final IntList descriptors = new IntList();
+        // Fields and then methods, both have the same layout.
+        for (int kind = 0; kind < 2; kind++) {
+            final int members = this.u2(offset);
+            offset += 2;
+            for (int index = 0; index < members; index++) {
+                names.add(this.u2(offset + 2));
+                descriptors.add(this.u2(offset + 4));
+                final int attributes = this.u2(offset + 6);
+                offset += 8;
+                for (int attribute = 0; attribute < attributes; attribute++) {
+                    if (this.utf8Equals(this.u2(offset), "Code")) {
+                        this.readCode(offset + 6);
+                    }
+                    offset += 6 + this.u4(offset + 2);
+                }
+            }
+        }
+        this.memberNames = names.toArray();
+        this.memberDescriptors = descriptors.toArray();
+        final int attributes = this.u2(offset);
+        offset += 2;
+        for (int attribute = 0; attribute < attributes; attribute++) {
+            if (this.utf8Equals(this.u2(offset), "BootstrapMethods")) {
+                this.readBootstrapMethods(offset + 6);
+            }
+            offset += 6 + this.u4(offset + 2);
+        }
+        this.end = offset;
+    }
+
+    /**
+     * Reads a class file from a buffer, starting at the buffer's position.
+     *
+     * @param buffer The class bytes.
+     * @return The parsed class file.
+     * @throws ClassFormatError If the class file is malformed.
+     */
+    static ClassFile read(ByteBuffer buffer) {
+        try {
+            return new ClassFile(buffer);
+        }
+        catch (IndexOutOfBoundsException e) {
+            throw new ClassFormatError("Truncated class file.");
+        }
+    }
+
+    /**
+     * @return The largest constant pool index referenced by a constant, a bytecode instruction or a bootstrap method.
+     * This is at least the number of constants if the class references constants it does not have.
+     */
+    int maxReference() {
+        return this.maxReference;
+    }
+
+    /**
+     * @return The internal name of the class, such as {@code com/example/Mod}.
+     */
+    String name() {
+        return this.internalName(this.thisClass);
+    }
+
+    /**
+     * @return The internal name of the superclass, or null if the class has none.
+     */
+    String superName() {
+        return this.superClass != 0 ? this.internalName(this.superClass) : null;
+    }
+
+    /**
+     * @return The internal names of the interfaces the class directly implements.
+     */
+    List<String> interfaceNames() {
+        final List<String> names = new ArrayList<>(this.interfaces.length);
+        for (int index : this.interfaces) {
+            names.add(this.internalName(index));
+        }
+        return names;
+    }
+
+    /**
+     * Collects every field and method declared by this class. Each member is identified by its name followed by its
+     * descriptor, such as {@code size()I}.
+     *
+     * @return The declared members.
+     */
+    Set<String> declaredMembers() {
+        final Set<String> members = new HashSet<>();
+        for (int index = 0; index < this.memberNames.length; index++) {
+            members.add(this.utf8(this.memberNames[index]) + this.utf8(this.memberDescriptors[index]));
+        }
+        return members;
+    }
+
+    /**
+     * Collects every field and method referenced by bytecode instructions and by method handles that the class can
+     * invoke. Bootstrap methods of dynamic call sites are linked by the JVM rather than called by the class, so they are
+     * not included, but method handles passed to them as arguments are.
+     *
+     * @return The referenced members, in constant pool order.
+     */
+    List<MemberReference> memberReferences() {
+        final List<MemberReference> members = new ArrayList<>();
+        for (int index = this.usedMembers.nextSetBit(0); index >= 0; index = this.usedMembers.nextSetBit(index + 1)) {
+            final int offset = this.constants[index];
+            final int nameAndType = this.nameAndType(offset);
+            final String owner = this.utf8(this.u2(this.constants[this.u2(offset + 1)] + 1));
+            members.add(new MemberReference(owner, this.utf8(this.u2(nameAndType + 1)), this.utf8(this.u2(nameAndType + 3))));
+        }
+        return members;
+    }
+
+    /**
+     * Collects the internal names of every class referenced by this class. This includes every class constant
+     * that the JVM would resolve, the classes named in the descriptors of declared members, and the classes named in
+     * dynamic call site and method type descriptors. The descriptors of referenced members are not included as the JVM
+     * does not load their types when linking the member. Array types are reduced to their element type and the class
+     * itself is not included.
+     *
+     * @return The sorted names of the referenced classes.
+     */
+    Set<String> referencedClasses() {
+        final Set<String> names = new TreeSet<>();
+        for (int index = 1; index < this.constants.length; index++) {
+            final int offset = this.constants[index];
+            if (offset == 0) {
+                continue;
+            }
+            switch (this.u1(offset)) {
+                case CONSTANT_CLASS -> {
+                    if (this.usedClasses.get(index) && index != this.thisClass) {
+                        final String name = this.utf8(this.u2(offset + 1));
+                        if (name.charAt(0) == '[') {
+                            addDescriptorClasses(name, names);
+                        }
+                        else {
+                            names.add(name);
+                        }
+                    }
+                }
+                case CONSTANT_DYNAMIC, CONSTANT_INVOKE_DYNAMIC -> addDescriptorClasses(this.utf8(this.u2(this.nameAndType(offset) + 3)), names);
+                case CONSTANT_METHOD_TYPE -> addDescriptorClasses(this.utf8(this.u2(offset + 1)), names);
+                default -> {
+                }
+            }
+        }
+        for (int descriptor : this.memberDescriptors) {
+            addDescriptorClasses(this.utf8(descriptor), names);
+        }
+        names.remove(this.name());
+        return names;
+    }
+
+    /**
+     * @return The number of bytes in the class file.
+     */
+    int length() {
+        return this.end;
+    }
+
+    /**
+     * Gets the tag of a constant pool entry.
+     *
+     * @param index The index of the constant.
+     * @return The tag, or zero if the index is not the start of an entry.
+     */
+    int tag(int index) {
+        final int offset = index > 0 && index < this.constants.length ? this.constants[index] : 0;
+        return offset == 0 ? 0 : this.u1(offset);
+    }
+
+    /**
+     * @return The number of slots in the constant pool, including the unused slot at index zero.
+     */
+    int constantCount() {
+        return this.constants.length;
+    }
+
+    /**
+     * @return The offset of the first byte after the constant pool, pointing at the access flags of the class.
+     */
+    int constantsEnd() {
+        return this.constantsEnd;
+    }
+
+    /**
+     * Gets the offset of a constant pool entry, pointing at its tag.
+     *
+     * @param index The index of the constant.
+     * @return The offset relative to the start of the class file.
+     */
+    int constantOffset(int index) {
+        return this.constants[index];
+    }
+
+    /**
+     * Decodes a modified UTF-8 constant.
+     *
+     * @param index The index of the constant.
+     * @return The decoded string.
+     */
+    String utf8(int index) {
+        if (this.tag(index) != CONSTANT_UTF8) {
+            throw new ClassFormatError("Expected a UTF-8 constant at index " + index + ".");
+        }
+        final int offset = this.constants[index];
+        final int length = this.u2(offset + 1);
+        final char[] chars = new char[length];
+        int count = 0;
+        int position = offset + 3;
+        final int limit = position + length;
+        while (position < limit) {
+            final int b = this.u1(position++);
+            if (b < 0x80) {
+                chars[count++] = (char) b;
+            }
+            else if ((b & 0xE0) == 0xC0) {
+                chars[count++] = (char) (((b & 0x1F) << 6) | (this.u1(position++) & 0x3F));
+            }
+            else {
+                chars[count++] = (char) (((b & 0x0F) << 12) | ((this.u1(position++) & 0x3F) << 6) | (this.u1(position++) & 0x3F));
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    /**
+     * Gets the internal name of a class constant. Internal names use {@code /} as the package separator, and are looked
+     * up as they are rather than being converted to fully qualified names.
+     *
+     * @param index The index of the class constant.
+     * @return The name as it appears in the class file.
+     */
+    String internalName(int index) {
+        if (this.tag(index) != CONSTANT_CLASS) {
+            throw new ClassFormatError("Expected a class constant at index " + index + ".");
+        }
+        return this.utf8(this.u2(this.constants[index] + 1));
+    }
+
+    /**
+     * Copies bytes from the class file into an array.
+     *
+     * @param offset      The offset of the first byte to copy.
+     * @param destination The array to copy into.
+     * @param position    The index in the array to copy to.
+     * @param length      The number of bytes to copy.
+     */
+    void get(int offset, byte[] destination, int position, int length) {
+        this.buffer.get(this.start + offset, destination, position, length);
+    }
+
+    int u1(int offset) {
+        return Byte.toUnsignedInt(this.buffer.get(this.start + offset));
+    }
+
+    int u2(int offset) {
+        return Short.toUnsignedInt(this.buffer.getShort(this.start + offset));
+    }
+
+    int u4(int offset) {
+        return this.buffer.getInt(this.start + offset);
+    }
+
+    /**
+     * Adds every class named in a field, method or array descriptor.
+     *
+     * @param descriptor The descriptor to read.
+     * @param names      The set to add the internal names to.
+     */
+    static void addDescriptorClasses(String descriptor, Set<String> names) {
+        for (int index = 0; index < descriptor.length(); index++) {
+            if (descriptor.charAt(index) == 'L') {
+                final int end = descriptor.indexOf(';', index);
+                if (end < 0) {
+                    throw new ClassFormatError("Malformed descriptor '" + descriptor + "'.");
+                }
+                names.add(descriptor.substring(index + 1, end));
+                index = end;
+            }
+        }
+    }
+
+    // Gets the offset of the name and type entry used by a member reference
+    // or dynamic constant.
+    private int nameAndType(int offset) {
+        final int index = this.u2(offset + 3);
+        if (this.tag(index) != CONSTANT_NAME_AND_TYPE) {
+            throw new ClassFormatError("Expected a name and type constant at index " + index + ".");
+        }
+        return this.constants[index];
+    }
+
+    // Marks the owners of member references and method handles as used, as
+    // well as the class of a class constant.
+    private void useClass(int index) {
+        switch (this.tag(index)) {
+            case CONSTANT_CLASS -> this.usedClasses.set(index);
+            case CONSTANT_FIELD_REF, CONSTANT_METHOD_REF, CONSTANT_INTERFACE_METHOD_REF -> this.useClass(this.u2(this.constants[index] + 1));
+            case CONSTANT_METHOD_HANDLE -> this.useClass(this.u2(this.constants[index] + 2));
+            default -> {
+            }
+        }
+    }
+
+    // Records a constant pool index read from the class file in the largest
+    // referenced index, and returns it. Nothing is marked as used.
+    private int reference(int index) {
+        this.maxReference = Math.max(this.maxReference, index);
+        return index;
+    }
+
+    private void useMember(int index) {
+        switch (this.tag(index)) {
+            case CONSTANT_FIELD_REF, CONSTANT_METHOD_REF, CONSTANT_INTERFACE_METHOD_REF -> this.usedMembers.set(index);
+            case CONSTANT_METHOD_HANDLE -> this.useMember(this.u2(this.constants[index] + 2));
+            default -> {
+            }
+        }
+    }
+
+    private void readCode(int offset) {
+        final int codeLength = this.u4(offset + 4);
+        final int code = offset + 8;
+        int pc = 0;
+        while (pc < codeLength) {
+            final int opcode = this.u1(code + pc);
+            switch (opcode) {
+                case 0x12 -> { // ldc
+                    this.useClass(this.reference(this.u1(code + pc + 1)));
+                    this.useMember(this.u1(code + pc + 1));
+                }
+                case 0x13, 0xB2, 0xB3, 0xB4, 0xB5, 0xB6, 0xB7, 0xB8, 0xB9 -> { // ldc_w, field, invoke
+                    this.useClass(this.reference(this.u2(code + pc + 1)));
+                    this.useMember(this.u2(code + pc + 1));
+                }
+                case 0xBB, 0xBD, 0xC0, 0xC1, 0xC5 ->
+                        this.useClass(this.reference(this.u2(code + pc + 1))); // new, anewarray, checkcast, instanceof, multianewarray
+                case 0x14, 0xBA -> this.reference(this.u2(code + pc + 1)); // ldc2_w, invokedynamic
+                default -> {
+                }
+            }
+            pc += this.instructionLength(code, pc, opcode);
+        }
+        final int exceptions = this.u2(code + codeLength);
+        for (int index = 0; index < exceptions; index++) {
+            this.useClass(this.u2(code + codeLength + 2 + index * 8 + 6));
+        }
+    }
+
+    /**
+     * Gets the length of a bytecode instruction, including its operands and any switch padding.
+     *
+     * @param code   The offset of the first byte of the method's code.
+     * @param pc     The offset of the instruction relative to the code.
+     * @param opcode The opcode of the instruction.
+     * @return The length of the instruction in bytes.
+     */
+    int instructionLength(int code, int pc, int opcode) {
+        return switch (opcode) {
+            case 0x10, 0x12, 0x15, 0x16, 0x17, 0x18, 0x19, 0x36, 0x37, 0x38, 0x39, 0x3A, 0xA9, 0xBC -> 2;
+            case 0x11, 0x13, 0x14, 0x84, 0xB2, 0xB3, 0xB4, 0xB5, 0xB6, 0xB7, 0xB8, 0xBB, 0xBD, 0xC0, 0xC1, 0xC6, 0xC7 -> 3;
+            case 0xC5 -> 4;
+            case 0xB9, 0xBA, 0xC8, 0xC9 -> 5;
+            case 0xC4 -> this.u1(code + pc + 1) == 0x84 ? 6 : 4; // wide
+            case 0xAA -> { // tableswitch
+                final int table = pc + 4 - (pc & 3);
+                yield table - pc + 12 + 4 * (this.u4(code + table + 8) - this.u4(code + table + 4) + 1);
+            }
+            case 0xAB -> { // lookupswitch
+                final int table = pc + 4 - (pc & 3);
+                yield table - pc + 8 + 8 * this.u4(code + table + 4);
+            }
+            default -> {
+                if (opcode >= 0x99 && opcode <= 0xA8) {
+                    yield 3; // branches
+                }
+                if (opcode > 0xC9) {
+                    throw new ClassFormatError("Unknown opcode " + opcode + ".");
+                }
+                yield 1;
+            }
+        };
+    }
+
+    private void readBootstrapMethods(int offset) {
+        final int count = this.u2(offset);
+        offset += 2;
+        for (int index = 0; index < count; index++) {
+            this.useClass(this.reference(this.u2(offset)));
+            final int arguments = this.u2(offset + 2);
+            for (int argument = 0; argument < arguments; argument++) {
+                this.useClass(this.reference(this.u2(offset + 4 + 2 * argument)));
+                this.useMember(this.u2(offset + 4 + 2 * argument));
+            }
+            offset += 4 + 2 * arguments;
+        }
+    }
+
+    // Checks if a constant is a reference to a constructor.
+    boolean isConstructorReference(int index) {
+        final int tag = this.tag(index);
+        if (tag != CONSTANT_METHOD_REF && tag != CONSTANT_INTERFACE_METHOD_REF) {
+            return false;
+        }
+        return this.utf8Equals(this.u2(this.nameAndType(this.constants[index]) + 1), "<init>");
+    }
+
+    // Compares a UTF-8 constant to an ASCII string without decoding it.
+    boolean utf8Equals(int index, String ascii) {
+        if (this.tag(index) != CONSTANT_UTF8 || this.u2(this.constants[index] + 1) != ascii.length()) {
+            return false;
+        }
+        final int offset = this.constants[index] + 3;
+        for (int position = 0; position < ascii.length(); position++) {
+            if (this.u1(offset + position) != ascii.charAt(position)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A field or method referenced by a class.
+     *
+     * @param owner      The internal name of the class the member is referenced through. This is an array descriptor
+     *                   for methods called on arrays.
+     * @param name       The name of the member.
+     * @param descriptor The descriptor of the member.
+     */
+    record MemberReference(String owner, String name, String descriptor) {
+
+        /**
+         * @return The name of the member followed by its descriptor, as used by {@link #declaredMembers()}.
+         */
+        String member() {
+            return this.name + this.descriptor;
+        }
+    }
+
+    /**
+     * Everything verification needs from a class, read in one pass so the class file is not needed afterward.
+     *
+     * @param referencedClasses The classes the class references, see {@link #referencedClasses()}.
+     * @param memberReferences  The members the class uses, see {@link #memberReferences()}.
+     * @param superName         The internal name of the superclass, or null if there is none.
+     * @param interfaces        The internal names of the interfaces the class directly implements.
+     * @param declaredMembers   The name and descriptor of every declared member.
+     */
+    record Summary(Set<String> referencedClasses, List<MemberReference> memberReferences, String superName,
+                   List<String> interfaces, Set<String> declaredMembers) {
+
+        /**
+         * Reads the summary of a class.
+         *
+         * @param bytes The bytes of the class. The buffer may be reused once this returns.
+         * @return The summary of the class.
+         */
+        static Summary of(ByteBuffer bytes) {
+            final ClassFile classFile = ClassFile.read(bytes);
+            return new Summary(classFile.referencedClasses(), classFile.memberReferences(), classFile.superName(),
+                    classFile.interfaceNames(), classFile.declaredMembers());
+        }
+    }
+
+    /**
+     * A growable list of primitive ints.
+     */
+    private static final class IntList {
+
+        private int[] values = new int[16];
+        private int size;
+
+        private void add(int value) {
+            if (this.size == this.values.length) {
+                this.values = Arrays.copyOf(this.values, this.size * 2);
+            }
+            this.values[this.size++] = value;
+        }
+
+        private int[] toArray() {
+            return Arrays.copyOf(this.values, this.size);
+        }
+    }
+}
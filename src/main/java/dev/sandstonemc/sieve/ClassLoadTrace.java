@@ -0,0 +1,174 @@
+package dev.sandstonemc.sieve;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records the order in which the classes of a guest module are first needed, so that the next start can define them
+ * ahead of time with {@link SieveClassLoader#preload(ClassLoadTrace, java.util.concurrent.Executor, int)}. A trace is
+ * recorded by giving it to a {@link GuestClassProvider} with {@link GuestClassProvider#setLoadTrace(ClassLoadTrace)}
+ * before its class loader is created. Each class is recorded once, with the time since recording started, when a class
+ * loader is first asked for it.
+ * <p>
+ * A trace can be recorded while the previous one is replayed. Once a class has been preloaded the JVM resolves
+ * references to it from other guest classes without asking the class loader again, so a preloaded class can not be
+ * seen being needed. Preloaded classes are therefore carried over from the replayed trace with their previous time, and
+ * are given a new time if the class loader is asked for them directly. A class only leaves the trace once it is no
+ * longer part of the guest module, or a trace is recorded without replaying one.
+ */
+public final class ClassLoadTrace {
+
+    private static final int MAGIC = 0x534C5431; // SLT1
+    private static final int VERSION = 1;
+
+    private final long start = System.nanoTime();
+
+    /**
+     * The time each class was first needed, in nanoseconds since recording started.
+     */
+    private final Map<String, Long> loads = new ConcurrentHashMap<>();
+
+    /**
+     * Classes carried over from a replayed trace that have not been seen being needed yet.
+     */
+    private final Set<String> carried = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Creates an empty trace. Recording starts now.
+     */
+    public ClassLoadTrace() {
+    }
+
+    /**
+     * Loads a trace from a file. If the file does not exist, or can not be read, an empty trace is returned. Recording
+     * to the loaded trace adds to the classes it already holds.
+     *
+     * @param path The path of the trace file.
+     * @return The loaded trace.
+     */
+    public static ClassLoadTrace load(Path path) {
+        final ClassLoadTrace trace = new ClassLoadTrace();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return trace;
+            }
+            final int count = in.readInt();
+            for (int index = 0; index < count; index++) {
+                final String name = in.readUTF();
+                trace.loads.put(name, in.readLong());
+            }
+        }
+        catch (NoSuchFileException e) {
+            return trace;
+        }
+        catch (IOException e) {
+            // A corrupt trace is treated as empty, classes are then loaded
+            // lazily as they would be without one.
+            trace.loads.clear();
+        }
+        return trace;
+    }
+
+    /**
+     * Writes the trace to a file. The file is replaced atomically where supported.
+     *
+     * @param path The path of the trace file.
+     * @throws IOException If the file could not be written.
+     */
+    public void save(Path path) throws IOException {
+        final Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        final List<Map.Entry<String, Long>> loads = this.sortedLoads();
+        final Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(loads.size());
+            for (Map.Entry<String, Long> load : loads) {
+                out.writeUTF(load.getKey());
+                out.writeLong(load.getValue());
+            }
+        }
+        try {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * @return The fully qualified names of the traced classes, in the order they were first needed.
+     */
+    public List<String> getClassNames() {
+        return this.sortedLoads().stream().map(Map.Entry::getKey).toList();
+    }
+
+    /**
+     * Gets when a class was first needed.
+     *
+     * @param className The fully qualified name of the class.
+     * @return The time in nanoseconds since recording started, or -1 if the class is not in the trace.
+     */
+    public long getLoadTime(String className) {
+        final Long time = this.loads.get(className);
+        return time != null ? time : -1;
+    }
+
+    /**
+     * @return The number of traced classes.
+     */
+    public int size() {
+        return this.loads.size();
+    }
+
+    /**
+     * Records that a class was needed, unless it has already been recorded as needed.
+     *
+     * @param className The fully qualified name of the class.
+     */
+    void record(String className) {
+        if (!this.loads.containsKey(className) && this.loads.putIfAbsent(className, System.nanoTime() - this.start) == null) {
+            return;
+        }
+        if (!this.carried.isEmpty() && this.carried.remove(className)) {
+            this.loads.put(className, System.nanoTime() - this.start);
+        }
+    }
+
+    /**
+     * Records that a class was preloaded from a replayed trace, unless it has already been recorded. The class keeps
+     * the time it had in the replayed trace until it is recorded as needed.
+     *
+     * @param className The fully qualified name of the class.
+     * @param time      The time of the class in the replayed trace.
+     */
+    void recordPreloaded(String className, long time) {
+        // The class is marked as carried before its time is visible, so a
+        // concurrent record always replaces the carried time.
+        this.loads.computeIfAbsent(className, name -> {
+            this.carried.add(name);
+            return time;
+        });
+    }
+
+    private List<Map.Entry<String, Long>> sortedLoads() {
+        final List<Map.Entry<String, Long>> loads = new ArrayList<>(this.loads.entrySet());
+        loads.sort(Map.Entry.<String, Long>comparingByValue().thenComparing(Map.Entry.comparingByKey()));
+        return loads;
+    }
+}
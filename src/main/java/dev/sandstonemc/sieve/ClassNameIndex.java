@@ -0,0 +1,271 @@
+package dev.sandstonemc.sieve;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+
+/**
+ * An open addressing map from class names to guest class entries. Names are packed as UTF-8 into a single array and
+ * each slot keeps the hash of its name, so an index of many thousands of classes holds no strings or map nodes. Names
+ * can be looked up with either {@code .} or {@code /} as the package separator, so the internal names used by class
+ * files are found without converting them first. Lookups do not lock or allocate.
+ * <p>
+ * Changes are made one at a time while holding the lock of the index. A change is published by writing the value of
+ * its slot last, so a reader that sees the value also sees the name. Once the table or the names fill up, a larger copy
+ * is published and later changes are only made to the copy.
+ */
+final class ClassNameIndex {
+
+    private static final int MAX_NAME_LENGTH = 0xFFFF;
+
+    private volatile Table table = new Table(16, new byte[1024]);
+
+    /**
+     * Finds the entry of a class.
+     *
+     * @param name The fully qualified name of the class.
+     * @return The entry of the class, or null if there is none.
+     */
+    GuestClassEntry get(CharSequence name) {
+        return this.get(name, '.');
+    }
+
+    /**
+     * Finds the entry of a class by a name that uses another package separator, such as {@code com/example/Mod}.
+     *
+     * @param name      The fully qualified name of the class.
+     * @param separator The package separator used by the name.
+     * @return The entry of the class, or null if there is none.
+     */
+    GuestClassEntry get(CharSequence name, char separator) {
+        final Table table = this.table;
+        final int slot = table.find(name, separator, hash(name, separator));
+        return slot >= 0 ? table.values.get(slot) : null;
+    }
+
+    /**
+     * Checks if the index holds a class.
+     *
+     * @param name The fully qualified name of the class.
+     * @return If the class is in the index.
+     */
+    boolean contains(CharSequence name) {
+        return this.get(name) != null;
+    }
+
+    /**
+     * Sets the entry of a class, replacing any entry it already has.
+     *
+     * @param name  The fully qualified name of the class.
+     * @param entry The entry of the class.
+     */
+    synchronized void put(String name, GuestClassEntry entry) {
+        final int hash = hash(name, '.');
+        final int slot = this.table.find(name, '.', hash);
+        if (slot >= 0) {
+            this.table.values.set(slot, entry);
+        }
+        else {
+            this.insert(name, hash, entry);
+        }
+    }
+
+    /**
+     * Sets the entry of a class if it does not have one.
+     *
+     * @param name  The fully qualified name of the class.
+     * @param entry The entry of the class.
+     * @return True if the entry was added.
+     */
+    synchronized boolean putIfAbsent(String name, GuestClassEntry entry) {
+        final int hash = hash(name, '.');
+        if (this.table.find(name, '.', hash) >= 0) {
+            return false;
+        }
+        this.insert(name, hash, entry);
+        return true;
+    }
+
+    /**
+     * Replaces the entry of a class if it is the expected entry.
+     *
+     * @param name     The fully qualified name of the class.
+     * @param expected The entry the class is expected to have.
+     * @param entry    The new entry of the class.
+     * @return True if the entry was replaced.
+     */
+    synchronized boolean replace(String name, GuestClassEntry expected, GuestClassEntry entry) {
+        final int slot = this.table.find(name, '.', hash(name, '.'));
+        return slot >= 0 && this.table.values.compareAndSet(slot, expected, entry);
+    }
+
+    /**
+     * @return The number of classes in the index.
+     */
+    int size() {
+        return this.table.size;
+    }
+
+    /**
+     * Calls an action for every class in the index. Names are decoded for each call.
+     *
+     * @param action The action to call with the name and entry of each class.
+     */
+    void forEach(BiConsumer<String, GuestClassEntry> action) {
+        final Table table = this.table;
+        for (int slot = 0; slot < table.hashes.length; slot++) {
+            final GuestClassEntry entry = table.values.get(slot);
+            if (entry != null) {
+                action.accept(table.name(slot), entry);
+            }
+        }
+    }
+
+    private void insert(String name, int hash, GuestClassEntry entry) {
+        final byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("Class name '" + name + "' is too long.");
+        }
+        Table table = this.table;
+        if ((table.size + 1) * 2 > table.hashes.length || table.namesLength + bytes.length > table.names.length) {
+            table = table.grow(bytes.length);
+            this.table = table;
+        }
+        table.insert(bytes, hash, entry);
+    }
+
+    // Same as String#hashCode with the separator read as a dot, with the high
+    // bits mixed in because only the low bits select a slot.
+    private static int hash(CharSequence name, char separator) {
+        int hash = 0;
+        for (int index = 0; index < name.length(); index++) {
+            final char c = name.charAt(index);
+            hash = 31 * hash + (c == separator ? '.' : c);
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * The slots of the index. The arrays of a table are only written while holding the lock of the index, and only
+     * while the table is the current table.
+     */
+    private static final class Table {
+
+        private final int[] hashes;
+
+        /**
+         * The offset of each name in the packed names, shifted left by 16 bits, combined with the length of the name.
+         */
+        private final long[] locations;
+        private final AtomicReferenceArray<GuestClassEntry> values;
+        private final byte[] names;
+        private final int mask;
+        private int namesLength;
+        private volatile int size;
+
+        private Table(int capacity, byte[] names) {
+            this.hashes = new int[capacity];
+            this.locations = new long[capacity];
+            this.values = new AtomicReferenceArray<>(capacity);
+            this.names = names;
+            this.mask = capacity - 1;
+        }
+
+        // Finds the slot of a name. A slot without a value ends the probe, as
+        // slots are only filled in probe order and are never emptied.
+        private int find(CharSequence name, char separator, int hash) {
+            int slot = hash & this.mask;
+            while (this.values.get(slot) != null) {
+                if (this.hashes[slot] == hash && this.matches(slot, name, separator)) {
+                    return slot;
+                }
+                slot = (slot + 1) & this.mask;
+            }
+            return -1;
+        }
+
+        private void insert(byte[] name, int hash, GuestClassEntry entry) {
+            System.arraycopy(name, 0, this.names, this.namesLength, name.length);
+            this.place(hash, (long) this.namesLength << 16 | name.length, entry);
+            this.namesLength += name.length;
+        }
+
+        private void place(int hash, long location, GuestClassEntry entry) {
+            int slot = hash & this.mask;
+            while (this.values.get(slot) != null) {
+                slot = (slot + 1) & this.mask;
+            }
+            this.hashes[slot] = hash;
+            this.locations[slot] = location;
+            this.size++;
+            this.values.set(slot, entry);
+        }
+
+        // Copies every class into a table with room for at least one more
+        // class and name. Names keep their offsets, so the packed names are
+        // copied as a whole.
+        private Table grow(int nameLength) {
+            final int capacity = (this.size + 1) * 2 > this.hashes.length ? this.hashes.length * 2 : this.hashes.length;
+            int namesCapacity = this.names.length;
+            while (this.namesLength + nameLength > namesCapacity) {
+                namesCapacity *= 2;
+            }
+            final Table grown = new Table(capacity, Arrays.copyOf(this.names, namesCapacity));
+            grown.namesLength = this.namesLength;
+            for (int slot = 0; slot < this.hashes.length; slot++) {
+                final GuestClassEntry entry = this.values.get(slot);
+                if (entry != null) {
+                    grown.place(this.hashes[slot], this.locations[slot], entry);
+                }
+            }
+            return grown;
+        }
+
+        private String name(int slot) {
+            return new String(this.names, (int) (this.locations[slot] >>> 16), (int) (this.locations[slot] & 0xFFFF), StandardCharsets.UTF_8);
+        }
+
+        // Compares a stored name to a name by their UTF-16 code units, so the
+        // stored name is never decoded into a string.
+        private boolean matches(int slot, CharSequence name, char separator) {
+            int position = (int) (this.locations[slot] >>> 16);
+            final int end = position + (int) (this.locations[slot] & 0xFFFF);
+            final byte[] names = this.names;
+            int index = 0;
+            final int length = name.length();
+            while (position < end) {
+                final int b = names[position++];
+                if (b >= 0) {
+                    if (index == length || b != normalize(name.charAt(index++), separator)) {
+                        return false;
+                    }
+                    continue;
+                }
+                final int codePoint;
+                if ((b & 0xE0) == 0xC0) {
+                    codePoint = ((b & 0x1F) << 6) | (names[position++] & 0x3F);
+                }
+                else if ((b & 0xF0) == 0xE0) {
+                    codePoint = ((b & 0x0F) << 12) | ((names[position++] & 0x3F) << 6) | (names[position++] & 0x3F);
+                }
+                else {
+                    codePoint = ((b & 0x07) << 18) | ((names[position++] & 0x3F) << 12) | ((names[position++] & 0x3F) << 6) | (names[position++] & 0x3F);
+                }
+                if (Character.isBmpCodePoint(codePoint)) {
+                    if (index == length || name.charAt(index++) != codePoint) {
+                        return false;
+                    }
+                }
+                else if (index + 1 >= length || name.charAt(index++) != Character.highSurrogate(codePoint) || name.charAt(index++) != Character.lowSurrogate(codePoint)) {
+                    return false;
+                }
+            }
+            return index == length;
+        }
+
+        private static char normalize(char c, char separator) {
+            return c == separator ? '.' : c;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package dev.sandstonemc.sieve;
+
+import java.util.List;
+
+/**
+ * Validates guest class names in a single pass over their characters. Nothing is allocated unless the name is invalid.
+ */
+final class ClassNameValidator {
+
+    /**
+     * The minimum depth for a class, including the class itself.
+     */
+    static final int MINIMUM_CLASS_DEPTH = 4;
+
+    /**
+     * Reserved keywords and literals that can not be used as a package or class name. This matches
+     * {@link javax.lang.model.SourceVersion#isKeyword(CharSequence)} for the latest source version.
+     */
+    private static final CharRangeSet KEYWORDS = new CharRangeSet(List.of(
+            "abstract", "assert", "boolean", "break", "byte", "case", "catch", "char", "class", "const", "continue",
+            "default", "do", "double", "else", "enum", "extends", "final", "finally", "float", "for", "goto", "if",
+            "implements", "import", "instanceof", "int", "interface", "long", "native", "new", "package", "private",
+            "protected", "public", "return", "short", "static", "strictfp", "super", "switch", "synchronized", "this",
+            "throw", "throws", "transient", "try", "void", "volatile", "while", "_", "true", "false", "null"
+    ));
+
+    // The first problem found in a name. Problems are recorded rather than
+    // thrown so that the depth of the name can still be reported first.
+    private static final int VALID = 0;
+    private static final int EMPTY_COMPONENT = 1;
+    private static final int LOWER_CASE_CLASS = 2;
+    private static final int UPPER_CASE_PACKAGE = 3;
+    private static final int KEYWORD = 4;
+    private static final int INVALID_START = 5;
+    private static final int INVALID_PART = 6;
+
+    private ClassNameValidator() {
+    }
+
+    /**
+     * Checks that a guest class name meets the requirements to be loaded.
+     *
+     * @param className The fully qualified name of the guest class.
+     * @return An exception describing the first problem with the name, or null if the name is valid.
+     */
+    static InvalidClassNameException check(String className) {
+        if (className == null || className.isEmpty()) {
+            return new InvalidClassNameException("", "Package name can not be null or empty.");
+        }
+        final int length = className.length();
+        int depth = 1;
+        int problem = VALID;
+        int problemStart = 0;
+        int problemEnd = 0;
+        int problemIndex = 0;
+        int componentStart = 0;
+        // The first upper case character after the start of the component
+        // and the first character that can not be part of an identifier.
+        int upperCase = -1;
+        int invalidPart = -1;
+        for (int index = 0; index <= length; index++) {
+            if (index < length) {
+                final char c = className.charAt(index);
+                if (c != '.') {
+                    if (problem == VALID && index > componentStart) {
+                        if (upperCase < 0 && Character.isUpperCase(c)) {
+                            upperCase = index;
+                        }
+                        if (invalidPart < 0 && !Character.isJavaIdentifierPart(c)) {
+                            invalidPart = index;
+                        }
+                    }
+                    continue;
+                }
+                depth++;
+            }
+            if (problem == VALID) {
+                final boolean last = index == length;
+                if (componentStart == index) {
+                    problem = EMPTY_COMPONENT;
+                }
+                else if (last && Character.isLowerCase(className.charAt(componentStart))) {
+                    // This is not required by Java, however it is bad practice
+                    // to name classes like this.
+                    problem = LOWER_CASE_CLASS;
+                }
+                else if (!last && upperCase >= 0) {
+                    // Java does not require package names to be lowercase,
+                    // however it is considered best practice.
+                    problem = UPPER_CASE_PACKAGE;
+                    problemIndex = upperCase;
+                }
+                else if (KEYWORDS.contains(className, componentStart, index)) {
+                    // Package and class names can not use reserved keywords,
+                    // this ensures that they can still be declared. It's
+                    // likely very difficult to compile a class with a reserved
+                    // name, but we still check to be safe.
+                    problem = KEYWORD;
+                }
+                else if (!Character.isJavaIdentifierStart(className.charAt(componentStart))) {
+                    problem = INVALID_START;
+                    problemIndex = componentStart;
+                }
+                else if (invalidPart >= 0) {
+                    problem = INVALID_PART;
+                    problemIndex = invalidPart;
+                }
+                problemStart = componentStart;
+                problemEnd = index;
+            }
+            componentStart = index + 1;
+            upperCase = -1;
+            invalidPart = -1;
+        }
+        // Guest classes should always be at least 3 levels deep. While two
+        // could also be valid, three is considered best practice because it
+        // leads to fewer collisions and improves modularity and scalability.
+        if (depth < MINIMUM_CLASS_DEPTH) {
+            return new InvalidClassNameException(className, "Expected class '" + className + "' to be at least " + MINIMUM_CLASS_DEPTH + " deep. Depth was " + depth + ". Valid example: com.example.examplemod.HelloWorld");
+        }
+        return switch (problem) {
+            case VALID -> null;
+            case EMPTY_COMPONENT -> new InvalidClassNameException(className, "Empty component at index " + problemStart + " in class name '" + className + "'.");
+            case LOWER_CASE_CLASS -> new InvalidClassNameException(className, "Class name does not start with an upper case letter.");
+            case UPPER_CASE_PACKAGE -> new InvalidClassNameException(className, "Package name contains an upper case letter. '" + className.charAt(problemIndex) + "' in class name '" + className + "'.");
+            case KEYWORD -> new InvalidClassNameException(className, "Name " + className + "contains reserved keyword literal '" + className.substring(problemStart, problemEnd) + "'. ");
+            case INVALID_START -> new InvalidClassNameException(className, "Invalid component '" + className.substring(problemStart, problemEnd) + "' in class name '" + className + "'. '" + className.charAt(problemIndex) + "'");
+            default -> new InvalidClassNameException(className, "Invalid character '" + className.charAt(problemIndex) + "' in class name '" + className + "'.");
+        };
+    }
+}
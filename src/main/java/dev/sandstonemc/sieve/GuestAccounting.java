@@ -0,0 +1,325 @@
+package dev.sandstonemc.sieve;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Attributes the time and memory used by guest code to the guest module that ran it. When accounting is enabled for
+ * a {@link GuestClassProvider}, every method of its classes is rewritten to call {@link #enter(int)} when it starts and
+ * {@link #exit()} when it returns or throws. Guest classes do not link against this class, they call a hook class
+ * generated for their module with a name that is chosen at random when the JVM starts, so guest code can not name the
+ * hooks to leave its module or charge another module. Each thread tracks which module it is currently running, and only
+ * a change of module reads the clock and the allocation counter of the thread, so calls within a module cost a thread
+ * local lookup and an increment.
+ * <p>
+ * Time is the elapsed time a thread spent running code of the module, including host methods called by the module.
+ * Constructors enter their module after the super constructor call, so the code before it is attributed to whatever
+ * called them. Usage is only recorded when a thread leaves a module, so a snapshot does not include calls that are
+ * still running. Snapshots are cheap and are intended to be taken periodically, for example once per server tick, and
+ * compared with the previous snapshot.
+ */
+public final class GuestAccounting {
+
+    private static final int HOST = -1;
+
+    private static final ThreadLocal<State> STATE = ThreadLocal.withInitial(State::new);
+    private static final Map<String, Integer> IDS = new LinkedHashMap<>();
+    private static volatile Counters[] counters = new Counters[0];
+    private static volatile Class<?>[] hooks = new Class<?>[0];
+
+    /**
+     * Part of the name of every hook class, so hook classes of a previous run can not be named by guest code.
+     */
+    private static final String HOOKS_NAME = GuestAccounting.class.getName() + "$Hooks" + Long.toHexString(new SecureRandom().nextLong() >>> 1) + "$";
+
+    private static final com.sun.management.ThreadMXBean ALLOCATIONS = allocations();
+
+    private GuestAccounting() {
+    }
+
+    /**
+     * Called by the hooks of a module when a guest method starts.
+     *
+     * @param module The id of the module that owns the method.
+     */
+    static void enter(int module) {
+        final State state = STATE.get();
+        if (state.module == module) {
+            state.depth++;
+            return;
+        }
+        state.push(module);
+    }
+
+    /**
+     * Called by the hooks of a module when a guest method returns or throws.
+     */
+    static void exit() {
+        final State state = STATE.get();
+        if (--state.depth > 0) {
+            return;
+        }
+        state.pop();
+    }
+
+    /**
+     * Takes a snapshot of the usage of every module that has been accounted.
+     *
+     * @return The usage of each module by name, in the order the modules were first accounted.
+     */
+    public static Map<String, Usage> snapshot() {
+        final Map<String, Usage> usage = new LinkedHashMap<>();
+        synchronized (IDS) {
+            for (Map.Entry<String, Integer> entry : IDS.entrySet()) {
+                usage.put(entry.getKey(), counters[entry.getValue()].snapshot());
+            }
+        }
+        return usage;
+    }
+
+    /**
+     * Takes a snapshot of the usage of a single module.
+     *
+     * @param module The name of the module.
+     * @return The usage of the module, or null if it has not been accounted.
+     */
+    public static Usage snapshot(String module) {
+        final Integer id;
+        synchronized (IDS) {
+            id = IDS.get(module);
+        }
+        return id != null ? counters[id].snapshot() : null;
+    }
+
+    /**
+     * Gets the id used to account for a module in rewritten bytecode. Each name is given an id once, so every
+     * generation of a reloaded module is accounted together.
+     *
+     * @param module The name of the module.
+     * @return The id of the module.
+     */
+    static int id(String module) {
+        synchronized (IDS) {
+            final Integer existing = IDS.get(module);
+            if (existing != null) {
+                return existing;
+            }
+            final int id = IDS.size();
+            if (id > Short.MAX_VALUE) {
+                throw new IllegalStateException("Too many guest modules are accounted.");
+            }
+            final Counters[] grown = Arrays.copyOf(counters, id + 1);
+            grown[id] = new Counters();
+            counters = grown;
+            IDS.put(module, id);
+            return id;
+        }
+    }
+
+    /**
+     * Gets the hook class that rewritten classes of a module call. The class is defined next to this class the first
+     * time it is needed, and has a public static {@code enter()} and {@code exit()} that report for the module.
+     *
+     * @param module The id of the module.
+     * @return The hook class of the module.
+     */
+    static Class<?> hooks(int module) {
+        final Class<?>[] current = hooks;
+        if (module < current.length && current[module] != null) {
+            return current[module];
+        }
+        synchronized (IDS) {
+            if (module >= hooks.length) {
+                hooks = Arrays.copyOf(hooks, counters.length);
+            }
+            Class<?> defined = hooks[module];
+            if (defined == null) {
+                try {
+                    defined = MethodHandles.lookup().defineClass(createHooks(module));
+                }
+                catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+                // The array is only read without the lock, so the class is
+                // published by replacing the array.
+                final Class<?>[] grown = hooks.clone();
+                grown[module] = defined;
+                hooks = grown;
+            }
+            return defined;
+        }
+    }
+
+    // Writes a class with two methods that call enter with the id of the
+    // module and exit. The code has no branches, so no stack map frames are
+    // needed.
+    private static byte[] createHooks(int module) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(52);
+            out.writeShort(16);
+            out.writeByte(ClassFile.CONSTANT_UTF8); // 1
+            out.writeUTF((HOOKS_NAME + module).replace('.', '/'));
+            out.writeByte(ClassFile.CONSTANT_CLASS); // 2
+            out.writeShort(1);
+            out.writeByte(ClassFile.CONSTANT_UTF8); // 3
+            out.writeUTF("java/lang/Object");
+            out.writeByte(ClassFile.CONSTANT_CLASS); // 4
+            out.writeShort(3);
+            out.writeByte(ClassFile.CONSTANT_UTF8); // 5
+            out.writeUTF(GuestAccounting.class.getName().replace('.', '/'));
+            out.writeByte(ClassFile.CONSTANT_CLASS); // 6
+            out.writeShort(5);
+            out.writeByte(ClassFile.CONSTANT_UTF8); // 7
+            out.writeUTF("enter");
+            out.writeByte(ClassFile.CONSTANT_UTF8); // 8
+            out.writeUTF("(I)V");
+            out.writeByte(ClassFile.CONSTANT_NAME_AND_TYPE); // 9
+            out.writeShort(7);
+            out.writeShort(8);
+            out.writeByte(ClassFile.CONSTANT_METHOD_REF); // 10
+            out.writeShort(6);
+            out.writeShort(9);
+            out.writeByte(ClassFile.CONSTANT_UTF8); // 11
+            out.writeUTF("exit");
+            out.writeByte(ClassFile.CONSTANT_UTF8); // 12
+            out.writeUTF("()V");
+            out.writeByte(ClassFile.CONSTANT_NAME_AND_TYPE); // 13
+            out.writeShort(11);
+            out.writeShort(12);
+            out.writeByte(ClassFile.CONSTANT_METHOD_REF); // 14
+            out.writeShort(6);
+            out.writeShort(13);
+            out.writeByte(ClassFile.CONSTANT_UTF8); // 15
+            out.writeUTF("Code");
+            out.writeShort(0x0031); // public final super
+            out.writeShort(2);
+            out.writeShort(4);
+            out.writeShort(0); // interfaces
+            out.writeShort(0); // fields
+            out.writeShort(2); // methods
+            writeHook(out, 7, 1, new byte[]{0x11, (byte) (module >> 8), (byte) module, (byte) 0xB8, 0, 10, (byte) 0xB1});
+            writeHook(out, 11, 0, new byte[]{(byte) 0xB8, 0, 14, (byte) 0xB1});
+            out.writeShort(0); // attributes
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeHook(DataOutputStream out, int name, int maxStack, byte[] code) throws IOException {
+        out.writeShort(0x0009); // public static
+        out.writeShort(name);
+        out.writeShort(12); // ()V
+        out.writeShort(1);
+        out.writeShort(15);
+        out.writeInt(12 + code.length);
+        out.writeShort(maxStack);
+        out.writeShort(0); // max locals
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0); // exceptions
+        out.writeShort(0); // attributes
+    }
+
+    private static com.sun.management.ThreadMXBean allocations() {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean bean && bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()) {
+            return bean;
+        }
+        return null;
+    }
+
+    private static long allocatedBytes() {
+        return ALLOCATIONS != null ? ALLOCATIONS.getCurrentThreadAllocatedBytes() : 0;
+    }
+
+    /**
+     * The usage of a single guest module.
+     *
+     * @param timeNanos      The time threads spent running code of the module.
+     * @param allocatedBytes The bytes allocated by threads while running code of the module. This is zero if the JVM
+     *                       does not support measuring allocations.
+     * @param entries        The number of times a thread entered the module from the host or another module.
+     */
+    public record Usage(long timeNanos, long allocatedBytes, long entries) {
+    }
+
+    private static final class Counters {
+
+        private final LongAdder timeNanos = new LongAdder();
+        private final LongAdder allocatedBytes = new LongAdder();
+        private final LongAdder entries = new LongAdder();
+
+        private Usage snapshot() {
+            return new Usage(this.timeNanos.sum(), this.allocatedBytes.sum(), this.entries.sum());
+        }
+    }
+
+    /**
+     * The module a thread is running, and the modules it will return to.
+     */
+    private static final class State {
+
+        private int module = HOST;
+        private int depth;
+        private long time;
+        private long allocated;
+
+        private int[] modules = new int[8];
+        private int[] depths = new int[8];
+        private int size;
+
+        private void push(int next) {
+            if (this.size == this.modules.length) {
+                this.modules = Arrays.copyOf(this.modules, this.size * 2);
+                this.depths = Arrays.copyOf(this.depths, this.size * 2);
+            }
+            this.modules[this.size] = this.module;
+            this.depths[this.size] = this.depth;
+            this.size++;
+            this.switchTo(next, 1);
+            counters[next].entries.increment();
+        }
+
+        private void pop() {
+            if (this.size == 0) {
+                // Calls were not balanced, the thread is already in the host
+                // as a module is only left to return to where it came from.
+                this.depth = 0;
+                return;
+            }
+            this.size--;
+            this.switchTo(this.modules[this.size], this.depths[this.size]);
+        }
+
+        // Charges the time and memory used since the last switch to the
+        // module being left.
+        private void switchTo(int next, int depth) {
+            final long time = System.nanoTime();
+            final long allocated = allocatedBytes();
+            if (this.module != HOST) {
+                final Counters current = counters[this.module];
+                current.timeNanos.add(time - this.time);
+                current.allocatedBytes.add(allocated - this.allocated);
+            }
+            this.module = next;
+            this.depth = depth;
+            this.time = time;
+            this.allocated = allocated;
+        }
+    }
+}
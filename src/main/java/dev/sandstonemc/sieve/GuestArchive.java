@@ -0,0 +1,251 @@
+package dev.sandstonemc.sieve;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.BiConsumer;
+import java.util.zip.DataFormatException;
+
+/**
+ * A memory mapped JAR or ZIP archive. Only the central directory is read when the archive is opened, the bytes of an
+ * entry are read from the mapping when they are requested. Stored entries are served as slices of the mapping without
+ * being copied, deflated entries are inflated on demand.
+ */
+final class GuestArchive {
+
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int CENTRAL_DIRECTORY_HEADER = 0x02014b50;
+    private static final int LOCAL_FILE_HEADER = 0x04034b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+    private static final int CENTRAL_DIRECTORY_HEADER_SIZE = 46;
+    private static final int LOCAL_FILE_HEADER_SIZE = 30;
+    private static final int MAX_COMMENT_LENGTH = 0xFFFF;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+
+    private final Path path;
+    private final ByteBuffer mapping;
+
+    private GuestArchive(Path path, ByteBuffer mapping) {
+        this.path = path;
+        this.mapping = mapping;
+    }
+
+    /**
+     * Maps an archive into memory.
+     *
+     * @param path The path to the archive.
+     * @return The mapped archive.
+     * @throws IOException If the archive could not be mapped.
+     */
+    static GuestArchive open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Archive '" + path + "' is too large to be mapped.");
+            }
+            final MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return new GuestArchive(path, mapping.order(ByteOrder.LITTLE_ENDIAN));
+        }
+    }
+
+    /**
+     * Reads the central directory of the archive and creates a lazy entry for every class file in it.
+     *
+     * @param consumer Accepts the fully qualified name of each class and its entry.
+     * @throws IOException If the central directory is malformed or uses unsupported features.
+     */
+    void forEachClass(BiConsumer<String, GuestClassEntry> consumer) throws IOException {
+        this.forEachEntry(consumer, null);
+    }
+
+    /**
+     * Reads the central directory of the archive and creates a lazy entry for every class file and resource in it.
+     * Resources are every file that is not a class file, including files in META-INF.
+     *
+     * @param classes   Accepts the fully qualified name of each class and its entry.
+     * @param resources Accepts the path of each resource within the archive and its entry, or null to skip resources.
+     * @throws IOException If the central directory is malformed or uses unsupported features.
+     */
+    void forEachEntry(BiConsumer<String, GuestClassEntry> classes, BiConsumer<String, GuestClassEntry> resources) throws IOException {
+        final ByteBuffer buffer = this.mapping;
+        final int end = this.findEndOfCentralDirectory();
+        final int entries = Short.toUnsignedInt(buffer.getShort(end + 10));
+        final long directorySize = Integer.toUnsignedLong(buffer.getInt(end + 12));
+        final long directoryOffset = Integer.toUnsignedLong(buffer.getInt(end + 16));
+        if (entries == 0xFFFF || directoryOffset == 0xFFFFFFFFL || directoryOffset + directorySize > end) {
+            throw new IOException("Archive '" + this.path + "' uses ZIP64 or has a malformed central directory.");
+        }
+        int offset = (int) directoryOffset;
+        for (int index = 0; index < entries; index++) {
+            if (offset + CENTRAL_DIRECTORY_HEADER_SIZE > end || buffer.getInt(offset) != CENTRAL_DIRECTORY_HEADER) {
+                throw new IOException("Malformed central directory header in '" + this.path + "' at " + offset + ".");
+            }
+            final int method = Short.toUnsignedInt(buffer.getShort(offset + 10));
+            final long crc = Integer.toUnsignedLong(buffer.getInt(offset + 16));
+            final long compressedSize = Integer.toUnsignedLong(buffer.getInt(offset + 20));
+            final long size = Integer.toUnsignedLong(buffer.getInt(offset + 24));
+            final int nameLength = Short.toUnsignedInt(buffer.getShort(offset + 28));
+            final int extraLength = Short.toUnsignedInt(buffer.getShort(offset + 30));
+            final int commentLength = Short.toUnsignedInt(buffer.getShort(offset + 32));
+            final long headerOffset = Integer.toUnsignedLong(buffer.getInt(offset + 42));
+            final String name = this.readName(offset + CENTRAL_DIRECTORY_HEADER_SIZE, nameLength);
+            offset += CENTRAL_DIRECTORY_HEADER_SIZE + nameLength + extraLength + commentLength;
+
+            final String className = toClassName(name);
+            final boolean resource = className == null && resources != null && !name.endsWith("/") && !name.endsWith(".class");
+            if (className == null && !resource) {
+                continue;
+            }
+            if (method != METHOD_STORED && method != METHOD_DEFLATED) {
+                throw new IOException("Entry '" + name + "' in '" + this.path + "' uses unsupported compression method " + method + ".");
+            }
+            if (compressedSize > Integer.MAX_VALUE || size > Integer.MAX_VALUE || headerOffset + LOCAL_FILE_HEADER_SIZE > end) {
+                throw new IOException("Entry '" + name + "' in '" + this.path + "' is too large or out of bounds.");
+            }
+            final Entry entry = new Entry(name, (int) headerOffset, method, (int) compressedSize, (int) size, crc);
+            if (resource) {
+                resources.accept(name, entry);
+            }
+            else {
+                classes.accept(className, entry);
+            }
+        }
+    }
+
+    // Searches backwards for the end of central directory record. The
+    // record is followed by a variable length comment, so it is not always
+    // at a fixed offset.
+    private int findEndOfCentralDirectory() throws IOException {
+        final int limit = this.mapping.limit();
+        final int lowest = Math.max(0, limit - END_OF_CENTRAL_DIRECTORY_SIZE - MAX_COMMENT_LENGTH);
+        for (int offset = limit - END_OF_CENTRAL_DIRECTORY_SIZE; offset >= lowest; offset--) {
+            if (this.mapping.getInt(offset) == END_OF_CENTRAL_DIRECTORY) {
+                return offset;
+            }
+        }
+        throw new IOException("Could not find the central directory of '" + this.path + "'. Is it a valid JAR file?");
+    }
+
+    private String readName(int offset, int length) {
+        final byte[] name = new byte[length];
+        this.mapping.get(offset, name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Maps an entry path to a fully qualified class name.
+     *
+     * @param entryName The path of the entry within the archive.
+     * @return The class name, or null if the entry is not a guest class.
+     */
+    static String toClassName(String entryName) {
+        // Module and package descriptors are not loadable classes, and
+        // META-INF holds versioned copies that are not supported yet.
+        if (!entryName.endsWith(".class") || entryName.startsWith("META-INF/") || entryName.endsWith("module-info.class") || entryName.endsWith("package-info.class")) {
+            return null;
+        }
+        return entryName.substring(0, entryName.length() - 6).replace('/', '.');
+    }
+
+    /**
+     * A class file or resource within the mapped archive.
+     */
+    private final class Entry extends GuestClassEntry {
+
+        private final String name;
+        private final int headerOffset;
+        private final int method;
+        private final int compressedSize;
+        private final int size;
+        private final long crc;
+
+        private Entry(String name, int headerOffset, int method, int compressedSize, int size, long crc) {
+            this.name = name;
+            this.headerOffset = headerOffset;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.crc = crc;
+        }
+
+        @Override
+        long checksum() {
+            return this.crc;
+        }
+
+        @Override
+        ByteBuffer buffer() {
+            final ByteBuffer data = this.data();
+            if (this.method == METHOD_STORED) {
+                return data;
+            }
+            return ByteBuffer.wrap(this.inflate(data));
+        }
+
+        @Override
+        ByteBuffer scratchBuffer() {
+            final ByteBuffer data = this.data();
+            if (this.method == METHOD_STORED) {
+                return data;
+            }
+            return ByteBuffer.wrap(this.inflate(data, ClassCompressor.scratch(this.size)), 0, this.size);
+        }
+
+        @Override
+        byte[] bytes() {
+            final ByteBuffer data = this.data();
+            if (this.method == METHOD_STORED) {
+                final byte[] bytes = new byte[this.size];
+                data.get(bytes);
+                return bytes;
+            }
+            return this.inflate(data);
+        }
+
+        // The local header repeats the name and has its own extra field, the
+        // data starts after both of them. The lengths in the local header are
+        // not covered by the central directory, so the data is checked to lie
+        // within the archive.
+        private ByteBuffer data() {
+            final ByteBuffer mapping = GuestArchive.this.mapping;
+            if (mapping.getInt(this.headerOffset) != LOCAL_FILE_HEADER) {
+                throw this.malformedHeader();
+            }
+            final int nameLength = Short.toUnsignedInt(mapping.getShort(this.headerOffset + 26));
+            final int extraLength = Short.toUnsignedInt(mapping.getShort(this.headerOffset + 28));
+            final long dataOffset = (long) this.headerOffset + LOCAL_FILE_HEADER_SIZE + nameLength + extraLength;
+            final int length = this.method == METHOD_STORED ? this.size : this.compressedSize;
+            if (dataOffset + length > mapping.limit()) {
+                throw this.malformedHeader();
+            }
+            return mapping.slice((int) dataOffset, length);
+        }
+
+        private UncheckedIOException malformedHeader() {
+            return new UncheckedIOException(new IOException("Malformed local header for '" + this.name + "' in '" + GuestArchive.this.path + "'."));
+        }
+
+        private byte[] inflate(ByteBuffer data) {
+            return this.inflate(data, new byte[this.size]);
+        }
+
+        private byte[] inflate(ByteBuffer data, byte[] bytes) {
+            try {
+                if (ClassCompressor.inflate(data, null, bytes, this.size) != this.size) {
+                    throw new UncheckedIOException(new IOException("Entry '" + this.name + "' in '" + GuestArchive.this.path + "' is truncated."));
+                }
+                return bytes;
+            }
+            catch (DataFormatException e) {
+                throw new UncheckedIOException(new IOException("Entry '" + this.name + "' in '" + GuestArchive.this.path + "' is corrupt.", e));
+            }
+        }
+    }
+}
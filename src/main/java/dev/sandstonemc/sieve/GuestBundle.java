@@ -0,0 +1,273 @@
+package dev.sandstonemc.sieve;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * A prebuilt file holding every class of a guest environment. Bundles allow a provider to start without walking
+ * directories or reading archives, and without validating each class name again. A bundle is opened with a single
+ * memory mapping, lookups binary search the sorted name index in the mapping and class bytes are served as slices of
+ * it.
+ * <p>
+ * The file starts with a header holding a magic number, the format version, the number of classes, and the offsets of
+ * the name and data sections. The header is followed by a fixed size index entry for each class, sorted by name. Each
+ * index entry holds the offset and length of the UTF-8 name of the class, the offset and length of its bytes, and the
+ * status of the class. Names and class bytes are stored together in their own sections after the index.
+ */
+public final class GuestBundle {
+
+    private static final int MAGIC = 0x53564231; // SVB1
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 20;
+    private static final int INDEX_ENTRY_SIZE = 16;
+
+    /**
+     * The class name has passed {@link GuestClassProvider#validateGuestClassName(String)}.
+     */
+    private static final int FLAG_VALIDATED = 1;
+
+    private final Path path;
+    private final ByteBuffer mapping;
+    private final int count;
+    private final int namesOffset;
+    private final int dataOffset;
+
+    private GuestBundle(Path path, ByteBuffer mapping) throws IOException {
+        this.path = path;
+        this.mapping = mapping;
+        if (mapping.limit() < HEADER_SIZE || mapping.getInt(0) != MAGIC) {
+            throw new IOException("'" + path + "' is not a guest bundle.");
+        }
+        if (mapping.getInt(4) != VERSION) {
+            throw new IOException("Guest bundle '" + path + "' uses unsupported version " + mapping.getInt(4) + ".");
+        }
+        this.count = mapping.getInt(8);
+        this.namesOffset = mapping.getInt(12);
+        this.dataOffset = mapping.getInt(16);
+        if (this.count < 0 || this.namesOffset != HEADER_SIZE + this.count * INDEX_ENTRY_SIZE || this.dataOffset < this.namesOffset || this.dataOffset > mapping.limit()) {
+            throw new IOException("Guest bundle '" + path + "' has a malformed header.");
+        }
+        for (int index = 0; index < this.count; index++) {
+            final int entry = entryOffset(index);
+            final long nameEnd = (long) this.namesOffset + mapping.getInt(entry) + Short.toUnsignedInt(mapping.getShort(entry + 12));
+            final long dataEnd = (long) this.dataOffset + mapping.getInt(entry + 4) + mapping.getInt(entry + 8);
+            if (mapping.getInt(entry) < 0 || nameEnd > this.dataOffset || mapping.getInt(entry + 4) < 0 || mapping.getInt(entry + 8) < 0 || dataEnd > mapping.limit()) {
+                throw new IOException("Guest bundle '" + path + "' has a malformed index entry at " + index + ".");
+            }
+        }
+    }
+
+    /**
+     * Maps a bundle into memory.
+     *
+     * @param path The path to the bundle.
+     * @return The mapped bundle.
+     * @throws IOException If the bundle could not be mapped or is malformed.
+     */
+    static GuestBundle open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Guest bundle '" + path + "' is too large to be mapped.");
+            }
+            final MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new GuestBundle(path, mapping);
+        }
+    }
+
+    /**
+     * Writes every class in a provider to a bundle. The bundle is written to a temporary file first and moved into
+     * place once it is complete, atomically where supported. Each class name is validated as it is written, and only
+     * names that pass are marked so they are not validated again when the bundle is opened. A provider storing
+     * classes {@link GuestClassProvider.Storage#OFF_HEAP off-heap} must be written before any of its classes are
+     * defined, as their bytes are released once defined.
+     *
+     * @param provider The provider to write.
+     * @param path     The path to write the bundle to.
+     * @throws IOException If the bundle could not be written, or a class name is too long to be stored.
+     * @throws IllegalStateException If the bytes of a class in the provider have been released.
+     */
+    public static void write(GuestClassProvider provider, Path path) throws IOException {
+        if (provider.hasReleasedClasses()) {
+            throw new IllegalStateException("Could not write '" + provider.getName() + "' to a bundle as classes it stores off-heap have already been defined.");
+        }
+        final List<Map.Entry<String, GuestClassEntry>> entries = provider.entries().sorted(Map.Entry.comparingByKey()).toList();
+        final List<byte[]> names = new ArrayList<>(entries.size());
+        final List<ByteBuffer> classes = new ArrayList<>(entries.size());
+        final int[] flags = new int[entries.size()];
+        long namesSize = 0;
+        long dataSize = 0;
+        for (Map.Entry<String, GuestClassEntry> entry : entries) {
+            final byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            if (name.length > 0xFFFF) {
+                throw new IOException("Guest class name '" + entry.getKey().substring(0, 64) + "...' is too long to be written to a bundle.");
+            }
+            final ByteBuffer bytes = entry.getValue().buffer();
+            flags[names.size()] = ClassNameValidator.check(entry.getKey()) == null ? FLAG_VALIDATED : 0;
+            names.add(name);
+            classes.add(bytes);
+            namesSize += name.length;
+            dataSize += bytes.remaining();
+        }
+        final long namesOffset = HEADER_SIZE + (long) entries.size() * INDEX_ENTRY_SIZE;
+        if (namesOffset + namesSize + dataSize > Integer.MAX_VALUE) {
+            throw new IOException("Guest classes are too large to be written to a single bundle.");
+        }
+        final ByteBuffer index = ByteBuffer.allocate((int) namesOffset);
+        index.putInt(MAGIC).putInt(VERSION).putInt(entries.size()).putInt((int) namesOffset).putInt((int) (namesOffset + namesSize));
+        int nameOffset = 0;
+        int dataOffset = 0;
+        for (int entry = 0; entry < entries.size(); entry++) {
+            final int nameLength = names.get(entry).length;
+            final int dataLength = classes.get(entry).remaining();
+            index.putInt(nameOffset).putInt(dataOffset).putInt(dataLength).putShort((short) nameLength).putShort((short) flags[entry]);
+            nameOffset += nameLength;
+            dataOffset += dataLength;
+        }
+        index.flip();
+        final Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFully(channel, index);
+            for (byte[] name : names) {
+                writeFully(channel, ByteBuffer.wrap(name));
+            }
+            for (ByteBuffer bytes : classes) {
+                writeFully(channel, bytes);
+            }
+        }
+        try {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * @return The number of classes in the bundle.
+     */
+    int size() {
+        return this.count;
+    }
+
+    /**
+     * Finds a class in the bundle.
+     *
+     * @param name The fully qualified name of the class.
+     * @return The index of the class, or a negative number if it is not in the bundle.
+     */
+    int indexOf(String name) {
+        int low = 0;
+        int high = this.count - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final int entry = entryOffset(middle);
+            final int comparison = Utf8.compare(this.mapping, this.namesOffset + this.mapping.getInt(entry), Short.toUnsignedInt(this.mapping.getShort(entry + 12)), name);
+            if (comparison < 0) {
+                low = middle + 1;
+            }
+            else if (comparison > 0) {
+                high = middle - 1;
+            }
+            else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the bytes of a class in the bundle.
+     *
+     * @param index The index of the class.
+     * @return A slice of the mapping holding the class bytes.
+     */
+    ByteBuffer buffer(int index) {
+        final int entry = entryOffset(index);
+        return this.mapping.slice(this.dataOffset + this.mapping.getInt(entry + 4), this.mapping.getInt(entry + 8));
+    }
+
+    /**
+     * Gets the name of a class in the bundle.
+     *
+     * @param index The index of the class.
+     * @return The fully qualified name of the class.
+     */
+    String name(int index) {
+        final int entry = entryOffset(index);
+        return Utf8.decode(this.mapping, this.namesOffset + this.mapping.getInt(entry), Short.toUnsignedInt(this.mapping.getShort(entry + 12)));
+    }
+
+    /**
+     * Checks if a class name was validated when the bundle was written.
+     *
+     * @param index The index of the class.
+     * @return If the class name is known to be valid.
+     */
+    boolean isValidated(int index) {
+        return (this.mapping.getShort(entryOffset(index) + 14) & FLAG_VALIDATED) != 0;
+    }
+
+    /**
+     * Gets an entry for a class in the bundle.
+     *
+     * @param index The index of the class.
+     * @return The entry for the class.
+     */
+    GuestClassEntry entry(int index) {
+        return new Entry(index);
+    }
+
+    /**
+     * Visits every class in the bundle in name order.
+     *
+     * @param consumer Accepts the name and entry of each class.
+     */
+    void forEach(BiConsumer<String, GuestClassEntry> consumer) {
+        for (int index = 0; index < this.count; index++) {
+            consumer.accept(this.name(index), this.entry(index));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "GuestBundle[" + this.path + "]";
+    }
+
+    private static int entryOffset(int index) {
+        return HEADER_SIZE + index * INDEX_ENTRY_SIZE;
+    }
+
+    /**
+     * A class in the mapped bundle.
+     */
+    private final class Entry extends GuestClassEntry {
+
+        private final int index;
+
+        private Entry(int index) {
+            this.index = index;
+        }
+
+        @Override
+        ByteBuffer buffer() {
+            return GuestBundle.this.buffer(this.index);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package dev.sandstonemc.sieve;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Emitted when {@link SieveClassLoader} defines a guest class. The duration of the event covers both reading the class
+ * bytes and defining the class.
+ */
+@Name("dev.sandstonemc.sieve.GuestClassDefine")
+@Label("Guest Class Define")
+@Category("Sieve")
+@Description("A guest class was read from its provider and defined")
+final class GuestClassDefineEvent extends jdk.jfr.Event {
+
+    @Label("Module")
+    String module;
+
+    @Label("Class Name")
+    String className;
+
+    @Label("Size")
+    @DataAmount
+    int size;
+
+    @Label("Read Time")
+    @Timespan
+    long readTime;
+
+    @Label("Define Time")
+    @Timespan
+    long defineTime;
+}
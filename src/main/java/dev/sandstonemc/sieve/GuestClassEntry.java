@@ -0,0 +1,192 @@
+package dev.sandstonemc.sieve;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * The raw bytes for a single guest class. Entries may hold their bytes directly or read them lazily from a backing
+ * store such as a memory mapped archive. Guest resources use the same entries as classes.
+ */
+abstract class GuestClassEntry {
+
+    /**
+     * Gets a view of the raw class bytes. The returned buffer is positioned at the start of the class file and its limit
+     * is the end of the class file. Each call returns an independent buffer, however it may share its contents with the
+     * entry and must not be modified.
+     *
+     * @return The bytes of the class.
+     */
+    abstract ByteBuffer buffer();
+
+    /**
+     * Gets a view of the raw class bytes for immediate use. Unlike {@link #buffer()} the bytes may be decompressed into
+     * an array owned by the current thread, so the returned buffer is only valid until the next call to this method on
+     * the same thread.
+     *
+     * @return The bytes of the class.
+     */
+    ByteBuffer scratchBuffer() {
+        return this.buffer();
+    }
+
+    /**
+     * Copies the raw class bytes into a new array.
+     *
+     * @return The bytes of the class.
+     */
+    byte[] bytes() {
+        final ByteBuffer buffer = this.buffer();
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Gets a CRC-32 checksum of the class bytes. Entries that already know their checksum, such as entries in an
+     * archive, return it without reading their bytes.
+     *
+     * @return The checksum of the class bytes.
+     */
+    long checksum() {
+        final CRC32 crc = new CRC32();
+        crc.update(this.buffer());
+        return crc.getValue();
+    }
+
+    /**
+     * Gets the SHA-256 hash of the class bytes if the entry already knows it. Entries shared through a
+     * {@link ClassBlobStore} are stored by their hash.
+     *
+     * @return The hash of the class bytes, or null if it has not been computed.
+     */
+    VerificationCache.Digest knownDigest() {
+        return null;
+    }
+
+    /**
+     * Reads the parts of the class needed to verify it. Entries shared through a {@link ClassBlobStore} keep the
+     * summary, so a class added by many modules is only read once.
+     *
+     * @return The summary of the class.
+     */
+    ClassFile.Summary summary() {
+        return ClassFile.Summary.of(this.scratchBuffer());
+    }
+
+    /**
+     * An entry whose bytes have already been read into memory.
+     */
+    static final class Resident extends GuestClassEntry {
+
+        private final byte[] bytes;
+
+        Resident(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        ByteBuffer buffer() {
+            return ByteBuffer.wrap(this.bytes);
+        }
+
+        @Override
+        byte[] bytes() {
+            return this.bytes.clone();
+        }
+    }
+
+    /**
+     * An entry whose bytes are held in a direct buffer outside of the heap.
+     */
+    static final class Direct extends GuestClassEntry {
+
+        private final ByteBuffer buffer;
+
+        Direct(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        ByteBuffer buffer() {
+            return this.buffer.duplicate();
+        }
+    }
+
+    /**
+     * An entry for a loose file that is memory mapped the first time it is read. The mapping is kept for the life of
+     * the entry, so the file should not be truncated while it is in use.
+     */
+    static final class Mapped extends GuestClassEntry {
+
+        private final Path path;
+        private volatile ByteBuffer mapping;
+
+        Mapped(Path path) {
+            this.path = path;
+        }
+
+        @Override
+        ByteBuffer buffer() {
+            ByteBuffer mapping = this.mapping;
+            if (mapping == null) {
+                try (FileChannel channel = FileChannel.open(this.path, StandardOpenOption.READ)) {
+                    mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                this.mapping = mapping;
+            }
+            return mapping.duplicate();
+        }
+    }
+
+    /**
+     * An entry for a class that has been defined by a class loader. The bytes of the class are either kept, or
+     * released so that they can be reclaimed.
+     */
+    static final class Defined extends GuestClassEntry {
+
+        private final GuestClassEntry retained;
+
+        /**
+         * @param retained The entry the class was defined from, or null if its bytes have been released.
+         */
+        Defined(GuestClassEntry retained) {
+            this.retained = retained;
+        }
+
+        @Override
+        ByteBuffer buffer() {
+            if (this.retained == null) {
+                throw new IllegalStateException("The bytes of the class were released when it was defined, a provider storing classes off-heap can only be used by a single class loader.");
+            }
+            return this.retained.buffer();
+        }
+
+        @Override
+        ByteBuffer scratchBuffer() {
+            return this.retained != null ? this.retained.scratchBuffer() : this.buffer();
+        }
+
+        @Override
+        long checksum() {
+            return this.retained != null ? this.retained.checksum() : super.checksum();
+        }
+
+        @Override
+        VerificationCache.Digest knownDigest() {
+            return this.retained != null ? this.retained.knownDigest() : null;
+        }
+
+        @Override
+        ClassFile.Summary summary() {
+            return this.retained != null ? this.retained.summary() : super.summary();
+        }
+    }
+}
@@ -1,20 +1,32 @@
 package dev.sandstonemc.sieve;
 
-import javax.lang.model.SourceVersion;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
 import java.util.stream.Stream;
 
 /**
- * Provides lookups for classes added by guest modules. Classes are currently mapped using their fully qualified names
- * and are stored as their raw bytes. This implementation is a WIP and will be changed significantly in the future,
- * however its purpose and core functionality will stay the same. Currently class entries need to be manually defined,
- * in the future we will scan JAR files and load all of them automatically.
+ * Provides lookups for classes added by guest modules. Classes are mapped using their fully qualified names, which are
+ * kept in a compact index of packed UTF-8 names rather than as strings. Classes added from loose files are stored as
+ * their raw bytes, while classes added from JAR files are indexed when the archive is added and only read from the
+ * memory mapped archive when they are requested. Other files in directories and JAR files are kept as resources that
+ * guests can read through their class loader. This implementation is a WIP and will be changed significantly in the
+ * future, however its purpose and core functionality will stay the same.
  */
 public final class GuestClassProvider {
 
@@ -34,12 +46,128 @@ public final class GuestClassProvider {
             "org.netscape"
     );
 
+    private final String name;
+    private final ClassNameIndex data = new ClassNameIndex();
+
+    /**
+     * Files added alongside classes that are not class files, by their path relative to the root of the directory or
+     * archive, such as {@code assets/examplemod/lang/en_us.json}.
+     */
+    private final Map<String, GuestClassEntry> resources = new ConcurrentHashMap<>();
+    private final PrefixTrie reservedNames = new PrefixTrie();
+    private final List<GuestBundle> bundles = new CopyOnWriteArrayList<>();
+    private volatile SieveMetrics.Counters metrics;
+    private volatile ClassLoadTrace loadTrace;
+    private volatile Storage storage = Storage.HEAP;
+    private final OffHeapStore offHeap = new OffHeapStore();
+    private volatile ClassCompressor compressor;
+    private volatile ClassBlobStore blobStore;
+    private volatile int accountingId = -1;
+    private final AtomicInteger definedCount = new AtomicInteger();
+    private final AtomicInteger bundledDefinedCount = new AtomicInteger();
+    private volatile boolean released;
+
+    public GuestClassProvider() {
+        this("guest");
+    }
+
+    /**
+     * @param name The name of the guest module the classes belong to. This is used to attribute metrics and to name
+     *             the class loader.
+     */
+    public GuestClassProvider(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return The name of the guest module the classes belong to.
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Records metrics for this provider, and for any class loader created from it afterward. Metrics are attributed to
+     * the name of this provider.
+     *
+     * @param metrics The metrics to record to, or null to stop recording.
+     */
+    public void setMetrics(SieveMetrics metrics) {
+        this.metrics = metrics != null ? metrics.module(this.name) : null;
+    }
+
+    /**
+     * @return The counters metrics are recorded to, or null if metrics are not recorded.
+     */
+    SieveMetrics.Counters metrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Records the order in which classes of this provider are first needed by any class loader created from it
+     * afterward.
+     *
+     * @param loadTrace The trace to record to, or null to stop recording.
+     */
+    public void setLoadTrace(ClassLoadTrace loadTrace) {
+        this.loadTrace = loadTrace;
+    }
+
+    /**
+     * @return The trace class loads are recorded to, or null if they are not recorded.
+     */
+    ClassLoadTrace loadTrace() {
+        return this.loadTrace;
+    }
+
+    /**
+     * Enables or disables accounting of the time and memory used by the classes of this provider. When enabled, class
+     * loaders created from this provider afterward rewrite each class as it is defined so that its methods report to
+     * {@link GuestAccounting}, attributed to the name of this provider.
+     *
+     * @param enabled True to account for guest code.
+     */
+    public void setAccounting(boolean enabled) {
+        this.accountingId = enabled ? GuestAccounting.id(this.name) : -1;
+    }
+
+    /**
+     * @return The id guest code is accounted to, or -1 if accounting is disabled.
+     */
+    int accountingId() {
+        return this.accountingId;
+    }
+
+    /**
+     * Sets how the bytes of classes added from loose files or read by a {@link GuestModule} are stored. This only
+     * applies to classes added afterward.
+     * When {@link Storage#OFF_HEAP} is used the bytes of each class are released once a class loader defines it, so
+     * the provider must only be used by a single class loader, and must be verified or written to a bundle before its
+     * classes are loaded. Creating another class loader or writing a bundle afterward fails with an
+     * {@link IllegalStateException}. A {@link GuestModule} reads off-heap classes again for each generation rather than
+     * keeping them.
+     *
+     * @param storage How class bytes are stored.
+     */
+    public synchronized void setStorage(Storage storage) {
+        if (storage == Storage.COMPRESSED && this.compressor == null) {
+            this.compressor = new ClassCompressor();
+        }
+        this.storage = storage;
+    }
+
     /**
-     * The minimum depth for a class, including the class itself.
+     * Shares the bytes of classes added afterward from loose files or read by a {@link GuestModule} with other
+     * providers using the same store. A class with the same bytes as a class already in the store references the stored
+     * copy rather than being stored again, and verification reuses the work done for the stored copy. Classes are only
+     * shared when stored on the heap, as classes stored {@link Storage#OFF_HEAP off-heap} are released once defined.
+     * Classes in JAR files added with {@link #addJar(Path)} are read from the archive and are not stored.
+     *
+     * @param blobStore The store to share class bytes through, or null to stop sharing.
      */
-    private static final int MINIMUM_CLASS_DEPTH = 4;
-    private final Map<String, byte[]> data = new HashMap<>();
-    private final Set<String> reservedNames = new HashSet<>();
+    public void setBlobStore(ClassBlobStore blobStore) {
+        this.blobStore = blobStore;
+    }
 
     /**
      * Reserves a package name, preventing any guest module from declaring classes in them.
@@ -47,23 +175,27 @@ public final class GuestClassProvider {
      * @param name A partial package name that will be reserved.
      */
     public void reserve(String name) {
-        this.reservedNames.add(name);
+        this.reservedNames.put(name, 1);
     }
 
     /**
      * Reserves common JDK packages, preventing any guest modules from declaring classes in them.
      */
     public void reserveJDK() {
-        this.reservedNames.addAll(RESERVED_JDK);
+        for (String name : RESERVED_JDK) {
+            this.reserve(name);
+        }
     }
 
+    /**
+     * Checks if a class name starts with a reserved name. This is a single pass over the class name, regardless of
+     * how many names have been reserved.
+     *
+     * @param name The fully qualified name of the class.
+     * @return If the class name is reserved.
+     */
     public boolean isReserved(String name) {
-        for (String r : this.reservedNames) {
-            if (name.startsWith(r)) {
-                return true;
-            }
-        }
-        return false;
+        return this.reservedNames.find(name) != null;
     }
 
     /**
@@ -73,36 +205,239 @@ public final class GuestClassProvider {
      * @param path The path to a valid .class file.
      */
     public void add(String name, Path path) {
-        for (String reserved : this.reservedNames) {
-            if (name.startsWith(reserved)) {
+        this.add(name, this.readClass(path));
+    }
+
+    /**
+     * Adds all class files and resources from a JAR file to the guest environment. Only the central directory of the
+     * JAR is read when it is added, the bytes of each class or resource are read from the memory mapped file when they
+     * are requested.
+     *
+     * @param path The path to the JAR file.
+     */
+    public void addJar(Path path) {
+        scanJar(path, this::add, this::addResource);
+    }
+
+    private static void scanJar(Path path, BiConsumer<String, GuestClassEntry> classes, BiConsumer<String, GuestClassEntry> resources) {
+        try {
+            GuestArchive.open(path).forEachEntry(classes, resources);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Adds every class in a bundle created by {@link GuestBundle#write(GuestClassProvider, Path)} to the guest
+     * environment. The bundle is memory mapped and its classes are looked up in the mapping, so nothing is read or
+     * indexed on the heap. Class names that were validated when the bundle was written are not validated again,
+     * however they are still checked against the names reserved by this provider. Classes added individually take
+     * priority over classes in a bundle.
+     *
+     * @param path The path to the bundle.
+     */
+    public void addBundle(Path path) {
+        final GuestBundle bundle;
+        try {
+            bundle = GuestBundle.open(path);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (this.reservedNames.size() > 0) {
+            for (int index = 0; index < bundle.size(); index++) {
+                final String name = bundle.name(index);
+                final String reserved = this.reservedNames.find(name);
+                if (reserved != null) {
+                    throw new InvalidClassNameException(name, "Could not load class '" + name + "' as '" + reserved + "' is reserved.");
+                }
+            }
+        }
+        for (int index = 0; index < bundle.size(); index++) {
+            if (!bundle.isValidated(index)) {
+                validateGuestClassName(bundle.name(index));
+            }
+        }
+        this.bundles.add(bundle);
+    }
+
+    /**
+     * Creates an entry holding class bytes, stored as configured by {@link #setStorage(Storage)}. If a blob store is
+     * set, the entry may be shared with other providers.
+     *
+     * @param bytes The bytes of the class. The array must not be modified afterward.
+     * @return The entry.
+     */
+    GuestClassEntry store(byte[] bytes) {
+        final ClassBlobStore blobStore = this.blobStore;
+        if (blobStore != null && this.storage != Storage.OFF_HEAP) {
+            return blobStore.intern(bytes, this::storeUnshared);
+        }
+        return this.storeUnshared(bytes);
+    }
+
+    private GuestClassEntry storeUnshared(byte[] bytes) {
+        return switch (this.storage) {
+            case HEAP -> new GuestClassEntry.Resident(bytes);
+            case COMPRESSED -> this.compressor.compress(bytes);
+            case OFF_HEAP -> this.offHeap.copy(bytes);
+        };
+    }
+
+    /**
+     * Adds a class entry after checking its name.
+     *
+     * @param name  The fully qualified name of the class.
+     * @param entry The bytes of the class.
+     */
+    void add(String name, GuestClassEntry entry) {
+        this.validate(name);
+        this.data.put(name, entry);
+    }
+
+    // Checks that a class name is not reserved and is a valid guest class
+    // name, recording the time taken.
+    private void validate(String name) {
+        final SieveMetrics.Counters metrics = this.metrics;
+        final GuestClassValidateEvent event = new GuestClassValidateEvent();
+        final long start = metrics != null ? System.nanoTime() : 0;
+        event.begin();
+        try {
+            final String reserved = this.reservedNames.find(name);
+            if (reserved != null) {
                 throw new InvalidClassNameException(name, "Could not load class '" + name + "' as '" + reserved + "' is reserved.");
             }
+            validateGuestClassName(name);
+            event.valid = true;
         }
-        if (validateGuestClassName(name)) {
-            this.data.put(name, read(path));
+        finally {
+            event.end();
+            if (metrics != null) {
+                metrics.recordValidation(System.nanoTime() - start);
+            }
+            if (event.shouldCommit()) {
+                event.module = this.name;
+                event.className = name;
+                event.commit();
+            }
         }
     }
 
     /**
-     * Adds all class files from a directory and its subdirectories to the guest environment.
+     * Adds all class files and resources from a directory and its subdirectories to the guest environment. The
+     * directory is treated as the root of the package hierarchy. Class files are read in parallel, resources are memory
+     * mapped the first time they are requested.
      *
      * @param path The directory to add.
      */
     public void addDir(Path path) {
-        final int pathLength = path.toString().length() + 1;
-        try (Stream<Path> files = Files.walk(path)) {
-            files.filter(entry -> entry.getFileName().toString().endsWith(".class")).forEach(entry -> {
-                final String pathString = entry.toString();
-                if (!pathString.contains("main") && !pathString.contains("IPlugin")) {
-                    this.add(pathString.substring(pathLength, pathString.length() - 6).replace("\\", "."), entry);
-                }
-            });
+        this.scanDir(path, this::add, this::addResource);
+    }
+
+    private void scanDir(Path path, BiConsumer<String, GuestClassEntry> classes, BiConsumer<String, GuestClassEntry> resources) {
+        final List<Path> files;
+        try (Stream<Path> walk = Files.walk(path)) {
+            files = walk.filter(Files::isRegularFile).toList();
         }
         catch (IOException e) {
-            throw new RuntimeException(e);
+            throw new UncheckedIOException(e);
+        }
+        files.parallelStream().forEach(entry -> {
+            final String entryName = toEntryName(path.relativize(entry));
+            if (!entryName.endsWith(".class")) {
+                resources.accept(entryName, new GuestClassEntry.Mapped(entry));
+                return;
+            }
+            final String name = GuestArchive.toClassName(entryName);
+            if (name != null) {
+                classes.accept(name, this.readClass(entry));
+            }
+        });
+    }
+
+    /**
+     * Adds a resource that guests can read through their class loader.
+     *
+     * @param name  The path of the resource relative to the root of the module, using {@code /} as the separator.
+     * @param entry The bytes of the resource.
+     */
+    void addResource(String name, GuestClassEntry entry) {
+        this.resources.put(name, entry);
+    }
+
+    /**
+     * Checks if a resource with the given name exists.
+     *
+     * @param name The path of the resource relative to the root of the module, such as {@code assets/examplemod/icon.png}.
+     * @return If the resource exists.
+     */
+    public boolean containsResource(String name) {
+        return this.resources.containsKey(name);
+    }
+
+    /**
+     * Gets the bytes of a resource without copying them. Resources in directories and stored entries of JAR files are
+     * served directly from their memory mapping, deflated entries are inflated on each call.
+     *
+     * @param name The path of the resource relative to the root of the module, such as {@code assets/examplemod/icon.png}.
+     * @return A read only buffer of the resource, or null if it does not exist.
+     */
+    public ByteBuffer getResource(String name) {
+        final GuestClassEntry entry = this.resources.get(name);
+        return entry != null ? entry.buffer().asReadOnlyBuffer() : null;
+    }
+
+    /**
+     * Adds all class files from many directories and JAR files to the guest environment. Each path is added as if by
+     * {@link #addDir(Path)} if it is a directory, or {@link #addJar(Path)} otherwise. Paths are scanned in parallel,
+     * then their classes and resources are merged into the provider in the order of the paths, so a class or resource
+     * found in more than one path is always taken from the last of them, as if each path had been added in turn. If
+     * any path can not be read, or has a class with an invalid name, nothing is added.
+     *
+     * @param paths The directories and JAR files to add.
+     */
+    public void addAll(Collection<Path> paths) {
+        final List<Scan> scans = paths.parallelStream().map(path -> {
+            final Scan scan = new Scan();
+            final BiConsumer<String, GuestClassEntry> classes = (name, entry) -> {
+                this.validate(name);
+                scan.classes.add(Map.entry(name, entry));
+            };
+            final BiConsumer<String, GuestClassEntry> resources = (name, entry) -> scan.resources.add(Map.entry(name, entry));
+            if (Files.isDirectory(path)) {
+                this.scanDir(path, classes, resources);
+            }
+            else {
+                scanJar(path, classes, resources);
+            }
+            return scan;
+        }).toList();
+        for (Scan scan : scans) {
+            scan.classes.forEach(entry -> this.data.put(entry.getKey(), entry.getValue()));
+            scan.resources.forEach(entry -> this.addResource(entry.getKey(), entry.getValue()));
         }
     }
 
+    // Maps a path relative to a class root to a class name.
+    static String toClassName(Path relative) {
+        return GuestArchive.toClassName(toEntryName(relative));
+    }
+
+    // Maps a path relative to a class root to the name it would have in an
+    // archive. Path elements are used rather than the path string so the
+    // platform separator does not matter.
+    static String toEntryName(Path relative) {
+        final StringBuilder entryName = new StringBuilder();
+        for (Path element : relative) {
+            if (!entryName.isEmpty()) {
+                entryName.append('/');
+            }
+            entryName.append(element);
+        }
+        return entryName.toString();
+    }
+
     /**
      * Checks if a class with the given name exists.
      *
@@ -110,7 +445,7 @@ public final class GuestClassProvider {
      * @return If the class exists.
      */
     public boolean contains(String name) {
-        return data.containsKey(name);
+        return this.data.contains(name) || this.findBundled(name) != null;
     }
 
     /**
@@ -120,7 +455,235 @@ public final class GuestClassProvider {
      * @return The bytes for the class or null if it does not exist.
      */
     public byte[] get(String name) {
-        return data.get(name);
+        final GuestClassEntry entry = this.find(name);
+        return entry != null ? entry.bytes() : null;
+    }
+
+    /**
+     * Gets a buffer over the raw bytes for a given class if they exist. Unlike {@link #get(String)} the bytes are not
+     * copied when the backing store allows it. Compressed classes are decompressed into an array owned by the current
+     * thread, so the buffer must be used before this is called again on the same thread.
+     *
+     * @param name The fully qualified name of the class.
+     * @return The bytes for the class or null if it does not exist.
+     */
+    ByteBuffer getBuffer(String name) {
+        final GuestClassEntry entry = this.find(name);
+        return entry != null ? entry.scratchBuffer() : null;
+    }
+
+    /**
+     * Marks a class as defined by a class loader. If the bytes of the class are held off-heap they are released.
+     * Classes in bundles are only counted, as the bundle is not indexed on the heap.
+     *
+     * @param name The fully qualified name of the class.
+     */
+    void markDefined(String name) {
+        GuestClassEntry entry = this.data.get(name);
+        if (entry == null) {
+            // A class loader defines each class once, so a bundled class is
+            // only counted again if the provider is shared by another loader.
+            if (this.findBundled(name) != null) {
+                this.definedCount.incrementAndGet();
+                this.bundledDefinedCount.incrementAndGet();
+            }
+            return;
+        }
+        while (entry != null && !(entry instanceof GuestClassEntry.Defined)) {
+            // The storage may have changed since the class was added, so only
+            // the entry itself tells whether its bytes are held off-heap.
+            final boolean release = entry instanceof GuestClassEntry.Direct;
+            final GuestClassEntry defined = new GuestClassEntry.Defined(release ? null : entry);
+            if (this.data.replace(name, entry, defined)) {
+                this.definedCount.incrementAndGet();
+                if (release) {
+                    this.released = true;
+                }
+                return;
+            }
+            entry = this.data.get(name);
+        }
+    }
+
+    /**
+     * @return True if the bytes of any class were released when it was defined, so the class can not be defined again
+     *         or written to a bundle.
+     */
+    boolean hasReleasedClasses() {
+        return this.released;
+    }
+
+    /**
+     * @return The number of classes that have been defined by a class loader.
+     */
+    public int getDefinedCount() {
+        return this.definedCount.get();
+    }
+
+    /**
+     * @return The number of classes that have not been defined by a class loader yet.
+     */
+    public int getPendingCount() {
+        final long pending = this.entries().filter(entry -> !(entry.getValue() instanceof GuestClassEntry.Defined)).count();
+        return (int) Math.max(0, pending - this.bundledDefinedCount.get());
+    }
+
+    private GuestClassEntry find(String name) {
+        final GuestClassEntry entry = this.data.get(name);
+        return entry != null ? entry : this.findBundled(name);
+    }
+
+    // Finds a class by the internal name used in class files, such as
+    // com/example/Mod. Only bundles need the name to be converted.
+    private GuestClassEntry findInternal(String internalName) {
+        final GuestClassEntry entry = this.data.get(internalName, '/');
+        return entry != null || this.bundles.isEmpty() ? entry : this.findBundled(internalName.replace('/', '.'));
+    }
+
+    private GuestClassEntry findBundled(String name) {
+        for (GuestBundle bundle : this.bundles) {
+            final int index = bundle.indexOf(name);
+            if (index >= 0) {
+                return bundle.entry(index);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Lists every class in the provider, including classes in bundles that are not hidden by an individually added
+     * class of the same name.
+     *
+     * @return The name and entry of every class.
+     */
+    Stream<Map.Entry<String, GuestClassEntry>> entries() {
+        if (this.bundles.isEmpty()) {
+            final List<Map.Entry<String, GuestClassEntry>> entries = new ArrayList<>(this.data.size());
+            this.data.forEach((name, entry) -> entries.add(Map.entry(name, entry)));
+            return entries.stream();
+        }
+        final Map<String, GuestClassEntry> entries = new HashMap<>();
+        for (int bundle = this.bundles.size() - 1; bundle >= 0; bundle--) {
+            this.bundles.get(bundle).forEach(entries::put);
+        }
+        this.data.forEach(entries::put);
+        return entries.entrySet().stream();
+    }
+
+    /**
+     * Checks every class in the provider for references to host classes that guests are not allowed to access. The
+     * constant pool and member descriptors of each class are scanned without defining the class, so a guest that would
+     * eventually fail to load can be rejected before any of its classes are defined. Classes are scanned in parallel.
+     * References to classes in this provider are always permitted.
+     * <p>
+     * The fields and methods used by each class are checked as well. A host member may only be used if every type in
+     * its descriptor is allowed, and references through a guest class are followed up its hierarchy to the member
+     * they resolve to. Host classes are found with the loader that loaded Sieve.
+     *
+     * @param hostAccess The host classes that guests may access.
+     * @return An exception for every prohibited reference, sorted by the referencing class and then the referenced
+     * class. This is empty if every reference is allowed.
+     */
+    public List<ProhibitedClassException> findProhibitedReferences(HostClassAccess hostAccess) {
+        return this.findProhibitedReferences(hostAccess, null);
+    }
+
+    /**
+     * Checks every class in the provider for references to host classes that guests are not allowed to access. This
+     * is the same as {@link #findProhibitedReferences(HostClassAccess)}, however classes that have already passed
+     * verification against the same host access are skipped, and classes that pass are added to the cache.
+     *
+     * @param hostAccess The host classes that guests may access.
+     * @param cache      The results of previous verification, or null to verify every class.
+     * @return An exception for every prohibited reference, sorted by the referencing class and then the referenced
+     * class. This is empty if every reference is allowed.
+     */
+    public List<ProhibitedClassException> findProhibitedReferences(HostClassAccess hostAccess, VerificationCache cache) {
+        return this.findProhibitedReferences(className -> false, hostAccess, SieveClassLoader.class.getClassLoader(), cache);
+    }
+
+    /**
+     * Checks every class in the provider for references to classes and members outside the provider that are not
+     * accessible.
+     *
+     * @param provided   Checks if a class outside this provider is provided by another guest module. These classes and
+     *                   their members may always be used.
+     * @param hostAccess The host classes that guests may access. Every class is checked against the rules at the start
+     *                   of verification.
+     * @param hostLoader The loader used to find the members of host classes.
+     * @param cache      The results of previous verification, or null to verify every class. Classes that use classes
+     *                   of other guest modules are always verified.
+     * @return An exception for every prohibited reference, sorted by the referencing class and then the referenced
+     * class.
+     */
+    List<ProhibitedClassException> findProhibitedReferences(Predicate<String> provided, HostClassAccess hostAccess, ClassLoader hostLoader, VerificationCache cache) {
+        final List<Map.Entry<String, GuestClassEntry>> entries = this.entries().sorted(Map.Entry.comparingByKey()).toList();
+        // The cache is bound to the same rules and members that classes are
+        // checked with, even if rules are added while verifying.
+        final HostClassAccess pinned = hostAccess.pin();
+        final HostMemberTable hostMembers = pinned.members(hostLoader);
+        if (cache != null) {
+            cache.bind(pinned, hostMembers);
+        }
+        final Verification verification = new Verification(provided, pinned, hostMembers, cache, entries);
+        return entries.parallelStream()
+                .flatMap(entry -> verification.check(entry.getKey(), entry.getValue()).stream())
+                .toList();
+    }
+
+    /**
+     * Checks every class in the provider for references to host classes that guests are not allowed to access. This
+     * is the same as {@link #findProhibitedReferences(HostClassAccess)}, but fails if any reference is prohibited.
+     *
+     * @param hostAccess The host classes that guests may access.
+     * @throws ProhibitedClassException If any class references a prohibited class. Every prohibited reference is
+     *                                  attached as a suppressed exception.
+     */
+    public void verify(HostClassAccess hostAccess) throws ProhibitedClassException {
+        this.verify(hostAccess, null);
+    }
+
+    /**
+     * Checks every class in the provider for references to host classes that guests are not allowed to access. This
+     * is the same as {@link #findProhibitedReferences(HostClassAccess, VerificationCache)}, but fails if any reference
+     * is prohibited.
+     *
+     * @param hostAccess The host classes that guests may access.
+     * @param cache      The results of previous verification, or null to verify every class.
+     * @throws ProhibitedClassException If any class references a prohibited class. Every prohibited reference is
+     *                                  attached as a suppressed exception.
+     */
+    public void verify(HostClassAccess hostAccess, VerificationCache cache) throws ProhibitedClassException {
+        throwProhibited(this.findProhibitedReferences(hostAccess, cache));
+    }
+
+    /**
+     * Throws a single exception summarizing every prohibited reference, if there are any.
+     *
+     * @param problems The prohibited references.
+     * @throws ProhibitedClassException If there are any prohibited references.
+     */
+    static void throwProhibited(List<ProhibitedClassException> problems) throws ProhibitedClassException {
+        if (!problems.isEmpty()) {
+            final ProhibitedClassException first = problems.get(0);
+            final ProhibitedClassException exception = new ProhibitedClassException(first.getClassName(), "Guest classes contain " + problems.size() + " references to restricted classes or members! " + first.getMessage());
+            problems.forEach(exception::addSuppressed);
+            throw exception;
+        }
+    }
+
+    // Reads a loose class file as configured by setStorage.
+    private GuestClassEntry readClass(Path path) {
+        return this.storage == Storage.OFF_HEAP ? this.readOffHeap(path) : this.store(read(path));
+    }
+
+    private GuestClassEntry readOffHeap(Path path) {
+        try {
+            return this.offHeap.read(path);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     private static byte[] read(Path path) {
@@ -133,57 +696,222 @@ public final class GuestClassProvider {
     }
 
     /**
-     * Validates that a guest class meets the requirements to be loaded.
+     * Validates that a guest class meets the requirements to be loaded. The name is checked in a single pass and nothing
+     * is allocated unless it is invalid.
      *
      * @param className The fully qualified name of the guest class.
      * @return This method will always return true, opting to throw an exception if the className is not valid.
      */
     public static boolean validateGuestClassName(String className) {
-        if (className == null || className.isEmpty()) {
-            throw new InvalidClassNameException("", "Package name can not be null or empty.");
-        }
-        final String[] components = className.split("\\.");
-        // Guest classes should always be at least 3 levels deep. While two
-        // could also be valid, three is considered best practice because it
-        // leads to fewer collisions and improves modularity and scalability.
-        if (components.length < MINIMUM_CLASS_DEPTH) {
-            throw new InvalidClassNameException(className, "Expected class '" + className + "' to be at least " + MINIMUM_CLASS_DEPTH + " deep. Depth was " + components.length + ". Valid example: com.example.examplemod.HelloWorld");
-        }
-        final int endIndex = components.length - 1;
-        for (int componentIndex = 0; componentIndex < components.length; componentIndex++) {
-            final String component = components[componentIndex];
-            if (componentIndex == endIndex) {
-                // This is not required by Java, however it is bad practice to
-                // name classes like this.
-                if (Character.isLowerCase(component.charAt(0))) {
-                    throw new InvalidClassNameException(className, "Class name does not start with an upper case letter.");
-                }
+        final InvalidClassNameException exception = ClassNameValidator.check(className);
+        if (exception != null) {
+            throw exception;
+        }
+        return true;
+    }
+
+    /**
+     * Validates that a group of guest classes meet the requirements to be loaded. Unlike
+     * {@link #validateGuestClassName(String)} this does not stop at the first invalid name, every invalid name is
+     * reported.
+     *
+     * @param classNames The fully qualified names of the guest classes, such as every class in a module.
+     * @return The problem with each invalid name, in the order the names were provided. This is empty if every name is
+     * valid.
+     */
+    public static List<InvalidClassNameException> validateGuestClassNames(Collection<String> classNames) {
+        final List<InvalidClassNameException> problems = new ArrayList<>();
+        for (String className : classNames) {
+            final InvalidClassNameException exception = ClassNameValidator.check(className);
+            if (exception != null) {
+                problems.add(exception);
+            }
+        }
+        return problems;
+    }
+
+    /**
+     * How the bytes of classes added from loose files are stored.
+     */
+    public enum Storage {
+
+        /**
+         * Bytes are kept on the heap for the life of the provider.
+         */
+        HEAP,
+
+        /**
+         * Bytes are kept in direct buffers outside of the heap, and are released once the class has been defined.
+         */
+        OFF_HEAP,
+
+        /**
+         * Bytes are kept on the heap compressed with a dictionary shared by the classes of the provider, and are
+         * decompressed each time the class is loaded. This uses a fraction of the memory of {@link #HEAP} for classes
+         * that must stay available, such as classes that are defined again by each generation of a reloaded module.
+         */
+        COMPRESSED
+    }
+
+    /**
+     * The classes and resources found in a single path by {@link #addAll(Collection)}. Only the order of the scans is
+     * kept when merging, the files of a directory are found in parallel but each has its own name.
+     */
+    private static final class Scan {
+
+        private final Collection<Map.Entry<String, GuestClassEntry>> classes = new ConcurrentLinkedQueue<>();
+        private final Collection<Map.Entry<String, GuestClassEntry>> resources = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * The state shared by every class checked in a single verification. References to members of guest classes are
+     * followed up the hierarchy of the guest until they reach a member declared by a guest or a host class, so the
+     * summary of each guest class is read once and kept here.
+     */
+    private final class Verification {
+
+        private static final String ARRAY_CLONE = "clone()Ljava/lang/Object;";
+        private static final String OBJECT = "java/lang/Object";
+
+        private final Predicate<String> provided;
+        private final HostClassAccess hostAccess;
+        private final HostMemberTable hostMembers;
+        private final VerificationCache cache;
+        private final Map<String, ClassFile.Summary> types = new ConcurrentHashMap<>();
+
+        /**
+         * The hash of each class, and a hash of every class in the provider. Classes whose member references were
+         * resolved through other guest classes are cached with the hash of the provider, as a change to any of those
+         * classes may change what the references resolve to. These are null when no cache is used.
+         */
+        private final Map<String, VerificationCache.Digest> digests;
+        private final VerificationCache.Digest providerDigest;
+
+        // Shared entries already know their hash.
+        private static VerificationCache.Digest digest(GuestClassEntry entry) {
+            final VerificationCache.Digest digest = entry.knownDigest();
+            return digest != null ? digest : VerificationCache.Digest.hash(entry.scratchBuffer());
+        }
+
+        private Verification(Predicate<String> provided, HostClassAccess hostAccess, HostMemberTable hostMembers, VerificationCache cache, List<Map.Entry<String, GuestClassEntry>> entries) {
+            this.provided = provided;
+            this.hostAccess = hostAccess;
+            this.hostMembers = hostMembers;
+            this.cache = cache;
+            if (cache != null) {
+                this.digests = new ConcurrentHashMap<>();
+                entries.parallelStream().forEach(entry -> this.digests.put(entry.getKey(), digest(entry.getValue())));
+                this.providerDigest = VerificationCache.Digest.combine(entries.stream().map(entry -> this.digests.get(entry.getKey())).toList());
             }
             else {
-                for (int charIndex = 1; charIndex < component.length(); charIndex++) {
-                    // Java does not require package names to be lowercase,
-                    // however it is considered best practice.
-                    if (Character.isUpperCase(component.charAt(charIndex))) {
-                        throw new InvalidClassNameException(className, "Package name contains an upper case letter. '" + component.charAt(charIndex) + "' in class name '" + className + "'.");
+                this.digests = null;
+                this.providerDigest = null;
+            }
+        }
+
+        private List<ProhibitedClassException> check(String name, GuestClassEntry entry) {
+            final VerificationCache.Digest digest = this.cache != null ? this.digests.get(name) : null;
+            final VerificationCache.Digest dependentDigest = digest != null ? VerificationCache.Digest.combine(List.of(digest, this.providerDigest)) : null;
+            if (digest != null && (this.cache.isVerified(digest) || this.cache.isVerified(dependentDigest))) {
+                return List.of();
+            }
+            // Summaries use the internal names read from the class file, names
+            // are only converted for classes outside this provider.
+            final String internalName = name.replace('.', '/');
+            final ClassFile.Summary summary = entry.summary();
+            this.types.putIfAbsent(internalName, summary);
+            // Classes outside this provider whose members were looked up, and if
+            // a class of another module was used.
+            final Set<String> consulted = digest != null ? new HashSet<>() : null;
+            boolean external = false;
+            List<ProhibitedClassException> problems = List.of();
+            for (String reference : summary.referencedClasses()) {
+                if (findInternal(reference) != null) {
+                    continue;
+                }
+                final String className = reference.replace('/', '.');
+                if (this.provided.test(className)) {
+                    external = true;
+                }
+                else if (!this.hostAccess.isAllowed(className)) {
+                    if (problems.isEmpty()) {
+                        problems = new ArrayList<>();
+                    }
+                    problems.add(ProhibitedClassException.referencedBy(name, className));
+                }
+            }
+            boolean dependent = false;
+            final Set<String> visited = new HashSet<>();
+            for (ClassFile.MemberReference reference : summary.memberReferences()) {
+                visited.clear();
+                if (!this.isAccessible(reference.owner(), reference.member(), visited, consulted)) {
+                    if (problems.isEmpty()) {
+                        problems = new ArrayList<>();
                     }
+                    problems.add(ProhibitedClassException.memberReferencedBy(name, reference.owner().replace('/', '.'), reference.name(), reference.descriptor()));
                 }
+                visited.remove(internalName);
+                dependent |= !visited.isEmpty();
             }
-            // Package and class names can not use reserved keywords, this
-            // ensures that they can still be declared. It's likely very
-            // difficult to compile a class with a reserved name, but we still
-            // check to be safe.
-            if (SourceVersion.isKeyword(component)) {
-                throw new InvalidClassNameException(className, "Name " + className + "contains reserved keyword literal '" + component + "'. ");
+            if (digest != null && problems.isEmpty() && !external) {
+                this.markVerified(dependent ? dependentDigest : digest, consulted);
             }
-            if (!Character.isJavaIdentifierStart(component.charAt(0))) {
-                throw new InvalidClassNameException(className, "Invalid component '" + component + "' in class name '" + className + "'. '" + component.charAt(0) + "'");
+            return problems;
+        }
+
+        // Caches a result with the members of the host classes it looked up.
+        // Classes of other modules can change without changing this provider,
+        // so results that looked them up are not cached.
+        private void markVerified(VerificationCache.Digest digest, Set<String> consulted) {
+            final Map<String, VerificationCache.Digest> hostClasses = new HashMap<>();
+            for (String className : consulted) {
+                if (this.provided.test(className)) {
+                    return;
+                }
+                if (this.hostAccess.isAllowed(className)) {
+                    hostClasses.put(className, this.hostMembers.digest(className));
+                }
+            }
+            this.cache.markVerified(digest, hostClasses);
+        }
+
+        // Checks if a member can be used through a class, given by its
+        // internal name. Prohibited host classes are not checked, as they are
+        // already reported. Classes outside this provider are added to
+        // consulted, unless it is null.
+        private boolean isAccessible(String owner, String member, Set<String> visited, Set<String> consulted) {
+            if (owner.charAt(0) == '[') {
+                // Arrays have a public clone method and the members of Object.
+                return member.equals(ARRAY_CLONE) || this.isAccessible(OBJECT, member, visited, consulted);
             }
-            for (int charIndex = 1; charIndex < component.length(); charIndex++) {
-                if (!Character.isJavaIdentifierPart(component.charAt(charIndex))) {
-                    throw new InvalidClassNameException(className, "Invalid character '" + component.charAt(charIndex) + "' in class name '" + className + "'.");
+            final GuestClassEntry guest = findInternal(owner);
+            if (guest != null) {
+                if (!visited.add(owner)) {
+                    return false;
                 }
+                final ClassFile.Summary type = this.types.computeIfAbsent(owner, className -> guest.summary());
+                if (type.declaredMembers().contains(member)) {
+                    return true;
+                }
+                if (type.superName() != null && this.isAccessible(type.superName(), member, visited, consulted)) {
+                    return true;
+                }
+                for (String implemented : type.interfaces()) {
+                    if (this.isAccessible(implemented, member, visited, consulted)) {
+                        return true;
+                    }
+                }
+                return false;
             }
+            // Classes of other modules are verified with their own module.
+            final String className = owner.replace('/', '.');
+            if (consulted != null) {
+                consulted.add(className);
+            }
+            if (this.provided.test(className) || !this.hostAccess.isAllowed(className)) {
+                return true;
+            }
+            return this.hostMembers.isAllowed(className, member);
         }
-        return true;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,25 @@
+package dev.sandstonemc.sieve;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Emitted when {@link GuestClassProvider} checks the name of a guest class as it is added.
+ */
+@Name("dev.sandstonemc.sieve.GuestClassValidate")
+@Label("Guest Class Validate")
+@Category("Sieve")
+@Description("The name of a guest class was checked against reserved packages and naming rules")
+final class GuestClassValidateEvent extends jdk.jfr.Event {
+
+    @Label("Module")
+    String module;
+
+    @Label("Class Name")
+    String className;
+
+    @Label("Valid")
+    boolean valid;
+}
@@ -0,0 +1,571 @@
+package dev.sandstonemc.sieve;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Rewrites guest classes so that their methods report to {@link GuestAccounting}. Every method with code calls
+ * {@code enter()} of the {@link GuestAccounting#hooks(int) hooks} of its module before its first instruction and
+ * {@code exit()} before each return. A catch all exception handler is added after the code that calls exit before
+ * rethrowing, so a method that throws also leaves the module.
+ * <p>
+ * Constructors call enter right after the call to the super constructor, or to another constructor of the class, as
+ * the instructions before it can not be covered by an exception handler. Arguments for the super constructor are still
+ * attributed to whatever called the constructor. A constructor whose super constructor call can not be found, or is
+ * jumped over, is left as it is.
+ * <p>
+ * Instructions are moved by the inserted calls, so branch and switch offsets, exception tables, line numbers, local
+ * variable ranges and stack map frames are all relocated. Type annotations on code refer to instruction offsets in ways
+ * that are not relocated and are removed.
+ * <p>
+ * The constants for the hooks are appended to the constant pool. A class that references constants past the end of its
+ * own constant pool is rejected, as it could otherwise call the hooks through the appended constants.
+ */
+final class GuestInstrumenter {
+
+    private static final int ACC_NATIVE = 0x0100;
+    private static final int ACC_ABSTRACT = 0x0400;
+
+    private static final int INVOKESPECIAL = 0xB7;
+    private static final int INVOKESTATIC = 0xB8;
+    private static final int NEW = 0xBB;
+    private static final int ATHROW = 0xBF;
+    private static final int TABLESWITCH = 0xAA;
+    private static final int LOOKUPSWITCH = 0xAB;
+    private static final int GOTO_W = 0xC8;
+    private static final int JSR_W = 0xC9;
+
+    private static final int ITEM_OBJECT = 7;
+    private static final int ITEM_UNINITIALIZED = 8;
+
+    /**
+     * The length of the call to enter inserted at the start of each method, or after the super constructor call.
+     */
+    private static final int PROLOGUE = 3;
+
+    /**
+     * The length of the call to exit inserted before each return.
+     */
+    private static final int EXIT = 3;
+
+    /**
+     * The number of constants added to the constant pool.
+     */
+    private static final int ADDED_CONSTANTS = 13;
+
+    private final ClassFile classFile;
+    private final String hooks;
+    private final boolean stackMaps;
+    private final Output out;
+
+    // Indexes of the added constants.
+    private final int enterMethod;
+    private final int exitMethod;
+    private final int throwableClass;
+    private final int stackMapTableName;
+
+    private GuestInstrumenter(ClassFile classFile, String hooks) {
+        this.classFile = classFile;
+        this.hooks = hooks;
+        this.stackMaps = classFile.u2(6) >= 50;
+        this.out = new Output(classFile.length() + 1024);
+        final int first = classFile.constantCount();
+        this.enterMethod = first + 5;
+        this.exitMethod = first + 9;
+        this.throwableClass = first + 11;
+        this.stackMapTableName = first + 12;
+    }
+
+    /**
+     * Rewrites a guest class to report to {@link GuestAccounting}.
+     *
+     * @param bytes The bytes of the class.
+     * @param hooks The hook class of the module that owns the class.
+     * @return The rewritten class, or null if the class can not be rewritten.
+     * @throws ClassFormatError If the class file is malformed.
+     */
+    static byte[] instrument(ByteBuffer bytes, Class<?> hooks) {
+        final ClassFile classFile = ClassFile.read(bytes);
+        if (classFile.maxReference() >= classFile.constantCount()) {
+            throw new ClassFormatError("Invalid constant pool index " + classFile.maxReference() + ".");
+        }
+        if (classFile.constantCount() + ADDED_CONSTANTS > 0xFFFF) {
+            return null;
+        }
+        try {
+            return new GuestInstrumenter(classFile, hooks.getName().replace('.', '/')).write();
+        }
+        catch (IndexOutOfBoundsException e) {
+            throw new ClassFormatError("Truncated class file.");
+        }
+    }
+
+    private byte[] write() {
+        final ClassFile classFile = this.classFile;
+        final Output out = this.out;
+        // Header and constant pool, with the new constants appended.
+        out.copy(classFile, 0, 8);
+        out.u2(classFile.constantCount() + ADDED_CONSTANTS);
+        out.copy(classFile, 10, classFile.constantsEnd());
+        final int first = classFile.constantCount();
+        out.utf8(this.hooks);
+        out.u1(ClassFile.CONSTANT_CLASS).u2(first);
+        out.utf8("enter");
+        out.utf8("()V");
+        out.u1(ClassFile.CONSTANT_NAME_AND_TYPE).u2(first + 2).u2(first + 3);
+        out.u1(ClassFile.CONSTANT_METHOD_REF).u2(first + 1).u2(first + 4);
+        out.utf8("exit");
+        out.utf8("()V");
+        out.u1(ClassFile.CONSTANT_NAME_AND_TYPE).u2(first + 6).u2(first + 7);
+        out.u1(ClassFile.CONSTANT_METHOD_REF).u2(first + 1).u2(first + 8);
+        out.utf8("java/lang/Throwable");
+        out.u1(ClassFile.CONSTANT_CLASS).u2(first + 10);
+        out.utf8("StackMapTable");
+        // Everything up to the methods is copied as is.
+        int offset = classFile.constantsEnd() + 6;
+        offset += 2 + 2 * classFile.u2(offset);
+        final int fields = classFile.u2(offset);
+        offset += 2;
+        for (int field = 0; field < fields; field++) {
+            offset = this.skipMember(offset);
+        }
+        final int methods = classFile.u2(offset);
+        offset += 2;
+        out.copy(classFile, classFile.constantsEnd(), offset);
+        for (int method = 0; method < methods; method++) {
+            final int access = classFile.u2(offset);
+            final boolean instrumented = (access & (ACC_NATIVE | ACC_ABSTRACT)) == 0;
+            final boolean constructor = classFile.utf8Equals(classFile.u2(offset + 2), "<init>");
+            final int attributes = classFile.u2(offset + 6);
+            out.copy(classFile, offset, offset + 8);
+            offset += 8;
+            for (int attribute = 0; attribute < attributes; attribute++) {
+                final int end = offset + 6 + classFile.u4(offset + 2);
+                final int mark = out.size();
+                if (!instrumented || !classFile.utf8Equals(classFile.u2(offset), "Code") || !this.rewriteCode(offset, constructor)) {
+                    out.reset(mark);
+                    out.copy(classFile, offset, end);
+                }
+                offset = end;
+            }
+        }
+        // Class attributes.
+        out.copy(classFile, offset, classFile.length());
+        return out.toByteArray();
+    }
+
+    // Rewrites a Code attribute. Returns false without finishing if the method
+    // can not be rewritten, for example because a relocated branch no longer
+    // fits in its offset.
+    private boolean rewriteCode(int attribute, boolean constructor) {
+        final ClassFile classFile = this.classFile;
+        final Output out = this.out;
+        final int codeLength = classFile.u4(attribute + 10);
+        final int code = attribute + 14;
+        // The instruction the call to enter is inserted before.
+        final int prologue = constructor ? this.afterSuperCall(code, codeLength) : 0;
+        if (prologue < 0 || prologue >= codeLength) {
+            return false;
+        }
+
+        // The new offset of each instruction, including any call inserted
+        // before it, and of the end of the code.
+        final int[] map = new int[codeLength + 1];
+        // The new offset of each instruction itself.
+        final int[] moved = new int[codeLength];
+        int position = 0;
+        int pc = 0;
+        while (pc < codeLength) {
+            final int opcode = classFile.u1(code + pc);
+            final int length = classFile.instructionLength(code, pc, opcode);
+            if (pc == prologue) {
+                // Jumps to this instruction, such as loops, land after the call.
+                position += PROLOGUE;
+            }
+            else if (pc < prologue && this.jumpsPast(code, pc, opcode, prologue)) {
+                // Code that skips the super constructor call would never enter.
+                return false;
+            }
+            map[pc] = position;
+            if (isReturn(opcode)) {
+                position += EXIT;
+            }
+            moved[pc] = position;
+            if (opcode == TABLESWITCH || opcode == LOOKUPSWITCH) {
+                // The switch is padded again for its new alignment.
+                position += length - (3 - (pc & 3)) + (3 - (position & 3));
+            }
+            else {
+                position += length;
+            }
+            pc += length;
+        }
+        map[codeLength] = position;
+        final int handler = position;
+        final int newLength = handler + EXIT + 1;
+        if (newLength > 0xFFFF) {
+            return false;
+        }
+
+        out.u2(classFile.u2(attribute));
+        final int attributeLength = out.size();
+        out.u4(0);
+        out.u2(Math.max(classFile.u2(attribute + 6), 1));
+        out.u2(classFile.u2(attribute + 8));
+        out.u4(newLength);
+        pc = 0;
+        while (pc < codeLength) {
+            final int opcode = classFile.u1(code + pc);
+            final int length = classFile.instructionLength(code, pc, opcode);
+            if (pc == prologue) {
+                out.u1(INVOKESTATIC).u2(this.enterMethod);
+            }
+            if (isReturn(opcode)) {
+                out.u1(INVOKESTATIC).u2(this.exitMethod);
+            }
+            if ((opcode >= 0x99 && opcode <= 0xA8) || opcode == 0xC6 || opcode == 0xC7) {
+                final int target = map[pc + (short) classFile.u2(code + pc + 1)] - moved[pc];
+                if (target != (short) target) {
+                    return false;
+                }
+                out.u1(opcode).u2(target);
+            }
+            else if (opcode == GOTO_W || opcode == JSR_W) {
+                out.u1(opcode).u4(map[pc + classFile.u4(code + pc + 1)] - moved[pc]);
+            }
+            else if (opcode == TABLESWITCH || opcode == LOOKUPSWITCH) {
+                out.u1(opcode);
+                for (int padding = 3 - (moved[pc] & 3); padding > 0; padding--) {
+                    out.u1(0);
+                }
+                final int table = pc + 4 - (pc & 3);
+                out.u4(map[pc + classFile.u4(code + table)] - moved[pc]);
+                if (opcode == TABLESWITCH) {
+                    final int low = classFile.u4(code + table + 4);
+                    final int high = classFile.u4(code + table + 8);
+                    out.u4(low).u4(high);
+                    for (int index = 0; index <= high - low; index++) {
+                        out.u4(map[pc + classFile.u4(code + table + 12 + 4 * index)] - moved[pc]);
+                    }
+                }
+                else {
+                    final int pairs = classFile.u4(code + table + 4);
+                    out.u4(pairs);
+                    for (int index = 0; index < pairs; index++) {
+                        out.u4(classFile.u4(code + table + 8 + 8 * index));
+                        out.u4(map[pc + classFile.u4(code + table + 12 + 8 * index)] - moved[pc]);
+                    }
+                }
+            }
+            else {
+                out.copy(classFile, code + pc, code + pc + length);
+            }
+            pc += length;
+        }
+        out.u1(INVOKESTATIC).u2(this.exitMethod);
+        out.u1(ATHROW);
+
+        int offset = code + codeLength;
+        final int exceptions = classFile.u2(offset);
+        out.u2(exceptions + 1);
+        offset += 2;
+        for (int index = 0; index < exceptions; index++) {
+            if (classFile.u2(offset) < prologue && classFile.u2(offset + 4) >= prologue) {
+                return false;
+            }
+            out.u2(map[classFile.u2(offset)]);
+            out.u2(map[classFile.u2(offset + 2)]);
+            out.u2(map[classFile.u2(offset + 4)]);
+            out.u2(classFile.u2(offset + 6));
+            offset += 8;
+        }
+        out.u2(map[prologue]).u2(handler).u2(handler).u2(0);
+
+        final int attributes = classFile.u2(offset);
+        offset += 2;
+        final int attributeCount = out.size();
+        out.u2(0);
+        int count = 0;
+        boolean stackMapTable = false;
+        for (int index = 0; index < attributes; index++) {
+            final int name = classFile.u2(offset);
+            final int start = offset + 6;
+            final int end = start + classFile.u4(offset + 2);
+            if (classFile.utf8Equals(name, "LineNumberTable")) {
+                out.copy(classFile, offset, start + 2);
+                for (int entry = start + 2; entry < end; entry += 4) {
+                    out.u2(map[classFile.u2(entry)]).u2(classFile.u2(entry + 2));
+                }
+                count++;
+            }
+            else if (classFile.utf8Equals(name, "LocalVariableTable") || classFile.utf8Equals(name, "LocalVariableTypeTable")) {
+                out.copy(classFile, offset, start + 2);
+                for (int entry = start + 2; entry < end; entry += 10) {
+                    final int from = classFile.u2(entry);
+                    final int to = from + classFile.u2(entry + 2);
+                    out.u2(map[from]).u2(map[to] - map[from]);
+                    out.copy(classFile, entry + 4, entry + 10);
+                }
+                count++;
+            }
+            else if (classFile.utf8Equals(name, "StackMapTable")) {
+                this.writeStackMapTable(name, start, map, handler);
+                stackMapTable = true;
+                count++;
+            }
+            else if (!classFile.utf8Equals(name, "RuntimeVisibleTypeAnnotations") && !classFile.utf8Equals(name, "RuntimeInvisibleTypeAnnotations")) {
+                out.copy(classFile, offset, end);
+                count++;
+            }
+            offset = end;
+        }
+        if (!stackMapTable && this.stackMaps) {
+            this.writeStackMapTable(this.stackMapTableName, -1, map, handler);
+            count++;
+        }
+        out.u2(attributeCount, count);
+        out.u4(attributeLength, out.size() - attributeLength - 4);
+        return true;
+    }
+
+    // Finds the instruction after the call to the super constructor, or to
+    // another constructor of the class. That is the first constructor call
+    // that does not initialize an object created by a new instruction, as
+    // every new is matched by a later constructor call. Returns -1 if there
+    // is none.
+    private int afterSuperCall(int code, int codeLength) {
+        final ClassFile classFile = this.classFile;
+        int created = 0;
+        int pc = 0;
+        while (pc < codeLength) {
+            final int opcode = classFile.u1(code + pc);
+            final int length = classFile.instructionLength(code, pc, opcode);
+            if (opcode == NEW) {
+                created++;
+            }
+            else if (opcode == INVOKESPECIAL && classFile.isConstructorReference(classFile.u2(code + pc + 1))) {
+                if (created == 0) {
+                    return pc + length;
+                }
+                created--;
+            }
+            pc += length;
+        }
+        return -1;
+    }
+
+    // Checks if a branch or switch jumps to or past an offset.
+    private boolean jumpsPast(int code, int pc, int opcode, int offset) {
+        final ClassFile classFile = this.classFile;
+        if ((opcode >= 0x99 && opcode <= 0xA8) || opcode == 0xC6 || opcode == 0xC7) {
+            return pc + (short) classFile.u2(code + pc + 1) >= offset;
+        }
+        if (opcode == GOTO_W || opcode == JSR_W) {
+            return pc + classFile.u4(code + pc + 1) >= offset;
+        }
+        if (opcode == TABLESWITCH || opcode == LOOKUPSWITCH) {
+            final int table = pc + 4 - (pc & 3);
+            boolean past = pc + classFile.u4(code + table) >= offset;
+            if (opcode == TABLESWITCH) {
+                final int count = classFile.u4(code + table + 8) - classFile.u4(code + table + 4) + 1;
+                for (int index = 0; index < count; index++) {
+                    past |= pc + classFile.u4(code + table + 12 + 4 * index) >= offset;
+                }
+            }
+            else {
+                final int pairs = classFile.u4(code + table + 4);
+                for (int index = 0; index < pairs; index++) {
+                    past |= pc + classFile.u4(code + table + 12 + 8 * index) >= offset;
+                }
+            }
+            return past;
+        }
+        return false;
+    }
+
+    // Writes a stack map table with every frame moved to its new offset, and
+    // a frame for the added exception handler. A start of -1 writes a table
+    // with only the handler frame.
+    private void writeStackMapTable(int name, int start, int[] map, int handler) {
+        final ClassFile classFile = this.classFile;
+        final Output out = this.out;
+        final int frames = start >= 0 ? classFile.u2(start) : 0;
+        out.u2(name);
+        final int attributeLength = out.size();
+        out.u4(0);
+        out.u2(frames + 1);
+        int offset = start + 2;
+        int oldPc = -1;
+        int newPc = -1;
+        for (int frame = 0; frame < frames; frame++) {
+            final int type = classFile.u1(offset);
+            final int delta;
+            if (type < 128) {
+                delta = type & 63;
+                offset += 1;
+            }
+            else {
+                delta = classFile.u2(offset + 1);
+                offset += 3;
+            }
+            oldPc += delta + 1;
+            final int pc = map[oldPc];
+            final int newDelta = pc - newPc - 1;
+            newPc = pc;
+            if (type < 64 || type == 251) {
+                // Same frame, the short form is only used if the delta fits.
+                if (newDelta < 64) {
+                    out.u1(newDelta);
+                }
+                else {
+                    out.u1(251).u2(newDelta);
+                }
+            }
+            else if (type < 128 || type == 247) {
+                // Same locals with one stack item.
+                if (newDelta < 64) {
+                    out.u1(64 + newDelta);
+                }
+                else {
+                    out.u1(247).u2(newDelta);
+                }
+                offset = this.copyVerificationType(offset, map);
+            }
+            else if (type < 247) {
+                throw new ClassFormatError("Unknown stack map frame type " + type + ".");
+            }
+            else if (type < 251) {
+                out.u1(type).u2(newDelta);
+            }
+            else if (type < 255) {
+                out.u1(type).u2(newDelta);
+                for (int local = 0; local < type - 251; local++) {
+                    offset = this.copyVerificationType(offset, map);
+                }
+            }
+            else {
+                out.u1(type).u2(newDelta);
+                for (int list = 0; list < 2; list++) {
+                    final int items = classFile.u2(offset);
+                    out.u2(items);
+                    offset += 2;
+                    for (int item = 0; item < items; item++) {
+                        offset = this.copyVerificationType(offset, map);
+                    }
+                }
+            }
+        }
+        // The handler has no locals, and the thrown exception on the stack.
+        out.u1(255).u2(handler - newPc - 1);
+        out.u2(0);
+        out.u2(1).u1(ITEM_OBJECT).u2(this.throwableClass);
+        out.u4(attributeLength, out.size() - attributeLength - 4);
+    }
+
+    // Copies a verification type, moving the offset of an uninitialized
+    // object to the new offset of its new instruction.
+    private int copyVerificationType(int offset, int[] map) {
+        final int tag = this.classFile.u1(offset);
+        this.out.u1(tag);
+        if (tag == ITEM_OBJECT) {
+            this.out.u2(this.classFile.u2(offset + 1));
+            return offset + 3;
+        }
+        if (tag == ITEM_UNINITIALIZED) {
+            this.out.u2(map[this.classFile.u2(offset + 1)]);
+            return offset + 3;
+        }
+        return offset + 1;
+    }
+
+    private int skipMember(int offset) {
+        final int attributes = this.classFile.u2(offset + 6);
+        offset += 8;
+        for (int attribute = 0; attribute < attributes; attribute++) {
+            offset += 6 + this.classFile.u4(offset + 2);
+        }
+        return offset;
+    }
+
+    private static boolean isReturn(int opcode) {
+        return opcode >= 0xAC && opcode <= 0xB1;
+    }
+
+    /**
+     * A growable big endian byte array.
+     */
+    private static final class Output {
+
+        private byte[] bytes;
+        private int size;
+
+        private Output(int capacity) {
+            this.bytes = new byte[capacity];
+        }
+
+        private Output u1(int value) {
+            this.ensure(1);
+            this.bytes[this.size++] = (byte) value;
+            return this;
+        }
+
+        private Output u2(int value) {
+            this.ensure(2);
+            this.u2(this.size, value);
+            this.size += 2;
+            return this;
+        }
+
+        private Output u4(int value) {
+            this.ensure(4);
+            this.u4(this.size, value);
+            this.size += 4;
+            return this;
+        }
+
+        private void u2(int position, int value) {
+            this.bytes[position] = (byte) (value >>> 8);
+            this.bytes[position + 1] = (byte) value;
+        }
+
+        private void u4(int position, int value) {
+            this.u2(position, value >>> 16);
+            this.u2(position + 2, value);
+        }
+
+        // Class file constants use modified UTF-8, which is the same as UTF-8
+        // for the ASCII names written here.
+        private void utf8(String value) {
+            final byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+            this.u1(ClassFile.CONSTANT_UTF8).u2(encoded.length);
+            this.ensure(encoded.length);
+            System.arraycopy(encoded, 0, this.bytes, this.size, encoded.length);
+            this.size += encoded.length;
+        }
+
+        private void copy(ClassFile classFile, int from, int to) {
+            this.ensure(to - from);
+            classFile.get(from, this.bytes, this.size, to - from);
+            this.size += to - from;
+        }
+
+        private int size() {
+            return this.size;
+        }
+
+        private void reset(int size) {
+            this.size = size;
+        }
+
+        private void ensure(int length) {
+            if (this.size + length > this.bytes.length) {
+                this.bytes = Arrays.copyOf(this.bytes, Math.max(this.size + length, this.bytes.length * 2));
+            }
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(this.bytes, this.size);
+        }
+    }
+}
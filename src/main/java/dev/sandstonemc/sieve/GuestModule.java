@@ -0,0 +1,283 @@
+package dev.sandstonemc.sieve;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * A guest module loaded from a single directory or JAR file that can be reloaded while the host is running. Each load
+ * of the module is a generation with its own {@link GuestClassProvider} and {@link SieveClassLoader}. Reloading
+ * creates a new generation only if a class was added, removed or changed, classes that did not change reuse the
+ * entries of the previous generation rather than being read again. Once the host drops its references to classes
+ * from an old generation, the generation is unreachable and its classes can be unloaded.
+ * <p>
+ * Resources of the module are added to each new generation. A change to resources alone does not create a new
+ * generation.
+ */
+public final class GuestModule {
+
+    private final String name;
+    private final Path source;
+    private final HostClassAccess hostAccess;
+    private final ClassLoader root;
+    private final Consumer<GuestClassProvider> setup;
+    private volatile Generation generation;
+
+    /**
+     * Creates a module and loads its first generation.
+     *
+     * @param name       The name of the module.
+     * @param source     The directory or JAR file holding the classes of the module.
+     * @param hostAccess The host classes that the module may access.
+     * @param setup      Configures the provider of each generation before classes are added, for example to reserve
+     *                   names, record metrics or set how classes are stored. It is not called by a reload that finds
+     *                   no change.
+     */
+    public GuestModule(String name, Path source, HostClassAccess hostAccess, Consumer<GuestClassProvider> setup) {
+        this(name, source, hostAccess, setup, SieveClassLoader.class.getClassLoader());
+    }
+
+    public GuestModule(String name, Path source, HostClassAccess hostAccess, Consumer<GuestClassProvider> setup, ClassLoader root) {
+        this.name = name;
+        this.source = source;
+        this.hostAccess = hostAccess;
+        this.setup = setup;
+        this.root = root;
+        this.generation = this.load(null);
+    }
+
+    /**
+     * @return The name of the module.
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * @return The directory or JAR file holding the classes of the module.
+     */
+    public Path getSource() {
+        return this.source;
+    }
+
+    /**
+     * @return The number of the current generation, starting at zero for the first load.
+     */
+    public int getGeneration() {
+        return this.generation.number;
+    }
+
+    /**
+     * @return The class loader of the current generation.
+     */
+    public SieveClassLoader getClassLoader() {
+        return this.generation.loader;
+    }
+
+    /**
+     * @return The provider of the current generation.
+     */
+    public GuestClassProvider getProvider() {
+        return this.generation.provider;
+    }
+
+    /**
+     * Checks the source of the module for changes and creates a new generation if any class was added, removed or
+     * changed. If nothing changed, the current generation and its classes are kept.
+     *
+     * @return True if a new generation was created.
+     */
+    public synchronized boolean reload() {
+        final Generation previous = this.generation;
+        final Generation next = this.load(previous);
+        if (next == previous) {
+            return false;
+        }
+        this.generation = next;
+        return true;
+    }
+
+    /**
+     * Checks if a changed file may affect this module.
+     *
+     * @param path The path of the changed file.
+     * @return True if the path is the source of this module or is inside it.
+     */
+    boolean isAffectedBy(Path path) {
+        return path.toAbsolutePath().normalize().startsWith(this.source.toAbsolutePath().normalize());
+    }
+
+    private Generation load(Generation previous) {
+        final Map<String, ClassState> classes = new HashMap<>();
+        final Map<String, GuestClassEntry> sources = new HashMap<>();
+        final Map<String, GuestClassEntry> resources = new HashMap<>();
+        final boolean changed;
+        final long size;
+        final long modified;
+        try {
+            final BasicFileAttributes attributes = Files.readAttributes(this.source, BasicFileAttributes.class);
+            if (attributes.isDirectory()) {
+                size = -1;
+                modified = -1;
+                changed = this.scanDirectory(previous, classes, sources, resources);
+            }
+            else {
+                size = attributes.size();
+                modified = attributes.lastModifiedTime().toMillis();
+                if (previous != null && previous.size == size && previous.modified == modified) {
+                    return previous;
+                }
+                changed = this.scanArchive(previous, classes, sources, resources);
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (previous != null && !changed && classes.size() == previous.classes.size()) {
+            // Files were touched without changing any class. The new file
+            // state is kept so the files are not read again next time.
+            previous.classes = classes;
+            previous.size = size;
+            previous.modified = modified;
+            return previous;
+        }
+        // The provider is only created and set up once a new generation is
+        // needed, so a reload that finds no change only costs the scan.
+        final GuestClassProvider provider = new GuestClassProvider(this.name);
+        this.setup.accept(provider);
+        for (Map.Entry<String, ClassState> entry : classes.entrySet()) {
+            final ClassState state = entry.getValue();
+            GuestClassEntry classEntry = state.entry;
+            if (classEntry == null) {
+                classEntry = provider.store(sources.get(entry.getKey()).bytes());
+                // Off-heap bytes are released once the class is defined, so
+                // they are not kept for the next generation to reuse.
+                if (!(classEntry instanceof GuestClassEntry.Direct)) {
+                    entry.setValue(new ClassState(classEntry, state.checksum, state.size, state.modified));
+                }
+            }
+            provider.add(entry.getKey(), classEntry);
+        }
+        // Archive resources are copied out of the mapping, see scanArchive.
+        resources.forEach((name, entry) -> provider.addResource(name, entry instanceof GuestClassEntry.Mapped ? entry : new GuestClassEntry.Resident(entry.bytes())));
+        final SieveClassLoader loader = new SieveClassLoader(provider, this.hostAccess, this.root);
+        return new Generation(previous != null ? previous.number + 1 : 0, provider, loader, classes, size, modified);
+    }
+
+    // Loose class files are only read again if their size or modification
+    // time changed, and are only treated as changed if their checksum did.
+    // Classes without a stored entry are given a source to be stored from,
+    // so touched files are not copied or shared again.
+    private boolean scanDirectory(Generation previous, Map<String, ClassState> classes, Map<String, GuestClassEntry> sources, Map<String, GuestClassEntry> resources) throws IOException {
+        final List<Path> files;
+        try (Stream<Path> walk = Files.walk(this.source)) {
+            files = walk.filter(Files::isRegularFile).toList();
+        }
+        boolean changed = false;
+        for (Path file : files) {
+            final String entryName = GuestClassProvider.toEntryName(this.source.relativize(file));
+            if (!entryName.endsWith(".class")) {
+                resources.put(entryName, new GuestClassEntry.Mapped(file));
+                continue;
+            }
+            final String className = GuestArchive.toClassName(entryName);
+            if (className == null) {
+                continue;
+            }
+            final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            final long modified = attributes.lastModifiedTime().toMillis();
+            final ClassState old = previous != null ? previous.classes.get(className) : null;
+            if (old != null && old.size == attributes.size() && old.modified == modified) {
+                classes.put(className, old);
+                if (old.entry == null) {
+                    sources.put(className, new GuestClassEntry.Mapped(file));
+                }
+                continue;
+            }
+            final byte[] bytes = Files.readAllBytes(file);
+            final CRC32 crc = new CRC32();
+            crc.update(bytes);
+            final long checksum = crc.getValue();
+            final boolean unchanged = old != null && old.checksum == checksum;
+            final GuestClassEntry reused = unchanged ? old.entry : null;
+            if (reused == null) {
+                sources.put(className, new GuestClassEntry.Resident(bytes));
+            }
+            classes.put(className, new ClassState(reused, checksum, attributes.size(), modified));
+            changed |= !unchanged;
+        }
+        return changed;
+    }
+
+    // The checksums of archive entries are read from the central directory,
+    // so only the directory is read to find changed classes. Changed classes
+    // are copied out of the mapping, the archive may be rewritten in place
+    // while an older generation still needs its classes. Resources are
+    // copied for the same reason once a new generation is created.
+    private boolean scanArchive(Generation previous, Map<String, ClassState> classes, Map<String, GuestClassEntry> sources, Map<String, GuestClassEntry> resources) throws IOException {
+        final boolean[] changed = {false};
+        GuestArchive.open(this.source).forEachEntry((className, entry) -> {
+            final ClassState old = previous != null ? previous.classes.get(className) : null;
+            if (old != null && old.checksum == entry.checksum()) {
+                classes.put(className, old);
+            }
+            else {
+                classes.put(className, new ClassState(null, entry.checksum(), -1, -1));
+                changed[0] = true;
+            }
+            if (classes.get(className).entry == null) {
+                sources.put(className, entry);
+            }
+        }, resources::put);
+        return changed[0];
+    }
+
+    @Override
+    public String toString() {
+        return "GuestModule[" + this.name + ", generation " + this.getGeneration() + "]";
+    }
+
+    /**
+     * A class in a generation and the state of the file it was read from. The entry is kept so the next generation can
+     * reuse it, unless the class is stored off-heap, as its bytes are released once it is defined. The checksum is kept
+     * rather than read from the entry for the same reason.
+     *
+     * @param entry The stored bytes of the class, or null if they are read again for each generation.
+     */
+    private record ClassState(GuestClassEntry entry, long checksum, long size, long modified) {
+    }
+
+    /**
+     * A single load of the module.
+     */
+    private static final class Generation {
+
+        private final int number;
+        private final GuestClassProvider provider;
+        private final SieveClassLoader loader;
+
+        // The classes in this generation and the state of the archive they
+        // were read from. These are updated if the files of the module are
+        // touched without changing any class.
+        private Map<String, ClassState> classes;
+        private long size;
+        private long modified;
+
+        private Generation(int number, GuestClassProvider provider, SieveClassLoader loader, Map<String, ClassState> classes, long size, long modified) {
+            this.number = number;
+            this.provider = provider;
+            this.loader = loader;
+            this.classes = classes;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+}
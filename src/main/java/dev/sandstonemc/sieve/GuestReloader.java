@@ -0,0 +1,224 @@
+package dev.sandstonemc.sieve;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Watches the sources of guest modules and reloads a module when its files change. Only the modules whose files
+ * changed are reloaded, every other module keeps its current generation and the classes it has already defined.
+ * Listeners are notified after a module has a new generation so the host can drop references to the old one.
+ * <p>
+ * A module that fails to reload, for example because a file was only partly written, keeps its current generation and
+ * is tried again on its next change. Failures are passed to the error listeners, or to the uncaught exception handler
+ * of the reloading thread if there are none, and never stop the watcher.
+ * <p>
+ * Modules can also be reloaded manually using {@link #reloadChanged()} without starting the watcher.
+ */
+public final class GuestReloader implements Closeable {
+
+    /**
+     * How long to wait for more changes after a change is seen. Builds and copies usually write many files at once,
+     * this lets them finish so the module is reloaded once.
+     */
+    private static final long SETTLE_MILLIS = 250;
+
+    private final List<GuestModule> modules;
+    private final List<Consumer<GuestModule>> listeners = new CopyOnWriteArrayList<>();
+    private final List<BiConsumer<GuestModule, RuntimeException>> errorListeners = new CopyOnWriteArrayList<>();
+    private final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>();
+    private WatchService watchService;
+    private Thread thread;
+
+    public GuestReloader(Collection<GuestModule> modules) {
+        this.modules = List.copyOf(modules);
+    }
+
+    /**
+     * Adds a listener that is called each time a module is reloaded.
+     *
+     * @param listener Accepts the module that was reloaded.
+     */
+    public void addListener(Consumer<GuestModule> listener) {
+        this.listeners.add(listener);
+    }
+
+    /**
+     * Adds a listener that is called each time a module fails to reload, or a listener fails while being notified of a
+     * reload.
+     *
+     * @param listener Accepts the module and the failure.
+     */
+    public void addErrorListener(BiConsumer<GuestModule, RuntimeException> listener) {
+        this.errorListeners.add(listener);
+    }
+
+    /**
+     * Checks every module for changes and reloads the modules that changed. Modules that fail to reload are reported to
+     * the error listeners and the remaining modules are still checked.
+     *
+     * @return The modules that were reloaded.
+     */
+    public List<GuestModule> reloadChanged() {
+        return this.reload(this.modules);
+    }
+
+    /**
+     * Starts watching the sources of every module on a background thread. Directories are watched recursively and
+     * JAR files are watched through the directory that holds them.
+     *
+     * @throws IOException If the sources could not be watched.
+     */
+    public synchronized void start() throws IOException {
+        if (this.thread != null) {
+            throw new IllegalStateException("The reloader has already been started.");
+        }
+        this.watchService = FileSystems.getDefault().newWatchService();
+        for (GuestModule module : this.modules) {
+            final Path source = module.getSource().toAbsolutePath().normalize();
+            if (Files.isDirectory(source)) {
+                this.watchTree(source);
+            }
+            else {
+                this.watch(source.getParent());
+            }
+        }
+        this.thread = new Thread(this::run, "Sieve Guest Reloader");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Stops watching for changes. Modules that have already been loaded are not affected.
+     *
+     * @throws IOException If the watcher could not be closed.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.watchService != null) {
+            this.watchService.close();
+        }
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                final Set<Path> changes = new LinkedHashSet<>();
+                WatchKey key = this.watchService.take();
+                // Collect every change until the files stop changing.
+                while (key != null) {
+                    this.collect(key, changes);
+                    key = this.watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                final List<GuestModule> affected = new ArrayList<>();
+                for (GuestModule module : this.modules) {
+                    if (changes.stream().anyMatch(module::isAffectedBy)) {
+                        affected.add(module);
+                    }
+                }
+                this.reload(affected);
+            }
+        }
+        catch (InterruptedException | ClosedWatchServiceException e) {
+            // The reloader was closed.
+        }
+    }
+
+    private void collect(WatchKey key, Set<Path> changes) {
+        final Path directory = this.watchedDirectories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (directory == null || event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // Events were lost, every module will be checked.
+                this.modules.forEach(module -> changes.add(module.getSource()));
+                continue;
+            }
+            final Path changed = directory.resolve((Path) event.context());
+            changes.add(changed);
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed)) {
+                try {
+                    this.watchTree(changed);
+                }
+                catch (IOException | UncheckedIOException e) {
+                    // The directory was removed before it could be watched.
+                }
+            }
+        }
+        if (!key.reset()) {
+            this.watchedDirectories.remove(key);
+        }
+    }
+
+    private List<GuestModule> reload(List<GuestModule> modules) {
+        final List<GuestModule> reloaded = new ArrayList<>();
+        for (GuestModule module : modules) {
+            try {
+                if (!module.reload()) {
+                    continue;
+                }
+            }
+            catch (RuntimeException e) {
+                this.report(module, e);
+                continue;
+            }
+            reloaded.add(module);
+            for (Consumer<GuestModule> listener : this.listeners) {
+                try {
+                    listener.accept(module);
+                }
+                catch (RuntimeException e) {
+                    this.report(module, e);
+                }
+            }
+        }
+        return reloaded;
+    }
+
+    private void report(GuestModule module, RuntimeException e) {
+        if (this.errorListeners.isEmpty()) {
+            final Thread thread = Thread.currentThread();
+            thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+            return;
+        }
+        for (BiConsumer<GuestModule, RuntimeException> listener : this.errorListeners) {
+            try {
+                listener.accept(module, e);
+            }
+            catch (RuntimeException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+        }
+    }
+
+    private void watchTree(Path root) throws IOException {
+        try (Stream<Path> directories = Files.walk(root)) {
+            for (Path directory : directories.filter(Files::isDirectory).toList()) {
+                this.watch(directory);
+            }
+        }
+    }
+
+    private void watch(Path directory) throws IOException {
+        final WatchKey key = directory.register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        this.watchedDirectories.put(key, directory);
+    }
+}
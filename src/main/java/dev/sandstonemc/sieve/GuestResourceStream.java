@@ -0,0 +1,73 @@
+package dev.sandstonemc.sieve;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ * Reads a guest resource straight from its buffer. Reads copy from the buffer into the array of the caller, so bytes
+ * of a memory mapped resource are not copied into any intermediate array.
+ */
+final class GuestResourceStream extends InputStream {
+
+    private final ByteBuffer buffer;
+    private int mark;
+
+    GuestResourceStream(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.mark = buffer.position();
+    }
+
+    @Override
+    public int read() {
+        return this.buffer.hasRemaining() ? Byte.toUnsignedInt(this.buffer.get()) : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+        Objects.checkFromIndexSize(offset, length, bytes.length);
+        if (length == 0) {
+            return 0;
+        }
+        if (!this.buffer.hasRemaining()) {
+            return -1;
+        }
+        final int count = Math.min(length, this.buffer.remaining());
+        this.buffer.get(bytes, offset, count);
+        return count;
+    }
+
+    @Override
+    public byte[] readAllBytes() {
+        final byte[] bytes = new byte[this.buffer.remaining()];
+        this.buffer.get(bytes);
+        return bytes;
+    }
+
+    @Override
+    public long skip(long count) {
+        final int skipped = (int) Math.max(0, Math.min(count, this.buffer.remaining()));
+        this.buffer.position(this.buffer.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return this.buffer.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public void mark(int limit) {
+        this.mark = this.buffer.position();
+    }
+
+    @Override
+    public void reset() {
+        this.buffer.position(this.mark);
+    }
+}
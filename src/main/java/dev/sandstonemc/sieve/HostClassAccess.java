@@ -1,11 +1,34 @@
 package dev.sandstonemc.sieve;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Determines which host classes can be accessed by guest modules. A guest will be able to access any method within the
- * host, provided the parameter types and return types are also all accessible.
+ * host, provided the parameter types and return types are also all accessible. Classes can be allowed individually, by
+ * package, or by prefix, and deny rules can be used to exclude classes from a broader allow rule.
+ * <p>
+ * Rules are held in snapshots. Changes made before anything has read the current snapshot are added to it directly, so
+ * setting up many rules one at a time does not copy the rules for each of them. Once a snapshot has been read it never
+ * changes again, each later change builds a new snapshot and swaps it in atomically, so rules can be added while
+ * guests are loading classes, for example to expose the API of a dependency once it has loaded. Lookups only lock the
+ * first time a snapshot is compiled and always see a complete snapshot. A change applies to lookups made after it,
+ * classes that a guest has already resolved stay resolved even if they are denied later. An access can be
+ * {@link #freeze() frozen} once it should not change anymore.
+ * <p>
+ * Members are checked when a guest is verified, see {@link GuestClassProvider#findProhibitedReferences(HostClassAccess)}.
+ * The class loader only checks classes, so guests that are not verified may still call any member of an allowed
+ * class.
  */
 public final class HostClassAccess {
 
@@ -44,7 +67,7 @@ public final class HostClassAccess {
             "java.lang.OutOfMemoryError",
             "java.lang.Record",
             "java.lang.RuntimeException",
-            "java.lang.short",
+            "java.lang.Short",
             "java.lang.String",
             "java.lang.StringBuilder",
             "java.lang.StringIndexOutOfBoundsException",
@@ -107,7 +130,7 @@ public final class HostClassAccess {
             "java.util.List",
             "java.util.ListIterator",
             "java.util.Map",
-            "java.util.Map.Entry",
+            "java.util.Map$Entry",
             "java.util.MissingResourceException",
             "java.util.NoSuchElementException",
             "java.util.Optional",
@@ -125,7 +148,7 @@ public final class HostClassAccess {
             "java.util.SortedSet",
             "java.util.Spliterator",
             "java.util.Spliterators",
-            "java.util.Spliterators.AbstractSpliterator",
+            "java.util.Spliterators$AbstractSpliterator",
             "java.util.Stack",
             "java.util.stream.Collector",
             "java.util.stream.Collectors",
@@ -141,7 +164,21 @@ public final class HostClassAccess {
             "java.util.WeakHashMap"
     );
 
-    private final Set<String> allowedClasses = new HashSet<>();
+    private static final int ALLOW = 1;
+    private static final int DENY = 2;
+
+    /**
+     * The current rules. This is replaced with a new snapshot by every change.
+     */
+    private final AtomicReference<Snapshot> snapshot;
+
+    public HostClassAccess() {
+        this(new Snapshot(0, new EnumMap<>(Kind.class), false));
+    }
+
+    private HostClassAccess(Snapshot snapshot) {
+        this.snapshot = new AtomicReference<>(snapshot);
+    }
 
     /**
      * Allows a host class to be used by a guest module. Great care must be taken when granting access to a class.
@@ -151,7 +188,7 @@ public final class HostClassAccess {
      * @param clazz The class to allow.
      */
     public void allow(Class<?> clazz) {
-        this.allow(clazz.getCanonicalName());
+        this.allow(clazz.getName());
     }
 
     /**
@@ -159,10 +196,160 @@ public final class HostClassAccess {
      * Guests will be able to access any method in an allowed class, provided the return type and all method parameter
      * types are also allowed.
      *
-     * @param name The fully qualified name of the class to allow.
+     * @param name The fully qualified binary name of the class to allow. Nested classes are separated with a
+     *             {@code $}, such as {@code java.util.Map$Entry}.
      */
     public void allow(String name) {
-        this.allowedClasses.add(name);
+        this.addRules(Kind.CLASS, List.of(name));
+    }
+
+    /**
+     * Allows many host classes to be used by guest modules at once. The classes are published together, so a guest
+     * loading classes at the same time sees either all of them or none of them.
+     *
+     * @param names The fully qualified binary names of the classes to allow.
+     */
+    public void allowAll(Collection<String> names) {
+        this.addRules(Kind.CLASS, names);
+    }
+
+    /**
+     * Allows guests to use a single member of a host class even though its descriptor names classes that are not
+     * allowed. The class that declares the member must still be allowed for guests to use it, and the member is also
+     * allowed through any allowed subclass. This is intended for members like {@link Enum#valueOf(Class, String)} that
+     * are called by compiler generated code.
+     *
+     * @param className  The fully qualified name of the class that declares the member.
+     * @param name       The name of the field or method, or {@code <init>} for a constructor.
+     * @param descriptor The descriptor of the field or method, such as {@code (Ljava/lang/Class;Ljava/lang/String;)Ljava/lang/Enum;}.
+     */
+    public void allowMember(String className, String name, String descriptor) {
+        this.addRules(Kind.MEMBER, List.of(className + '.' + name + descriptor));
+    }
+
+    /**
+     * Allows every class that is directly in a package to be used by guest modules, including nested classes. Classes
+     * in subpackages are not included. This is intended for exposing libraries like JOML without listing each class.
+     *
+     * @param packageName The fully qualified name of the package, such as {@code org.joml}.
+     */
+    public void allowPackage(String packageName) {
+        this.addRules(Kind.PACKAGE, List.of(packageName));
+    }
+
+    /**
+     * Allows every class whose fully qualified name starts with a prefix to be used by guest modules. Prefixes should
+     * normally end with a dot so that they only match whole packages and their subpackages.
+     *
+     * @param prefix The prefix to allow, such as {@code com.google.common.collect.}.
+     */
+    public void allowPrefix(String prefix) {
+        this.addRules(Kind.PREFIX, List.of(prefix));
+    }
+
+    /**
+     * Allows guests to read a resource of the host through their class loader. Guests can only read their own
+     * resources unless a host resource has been allowed. A resource of the guest always takes priority over a host
+     * resource with the same name.
+     *
+     * @param name The path of the resource, such as {@code assets/host/lang/en_us.json}.
+     */
+    public void allowResource(String name) {
+        this.addRules(Kind.RESOURCE, List.of(name));
+    }
+
+    /**
+     * Allows guests to read every resource of the host whose path starts with a prefix. Prefixes should normally end
+     * with a slash so that they only match whole directories.
+     *
+     * @param prefix The prefix to allow, such as {@code assets/host/}.
+     */
+    public void allowResourcePrefix(String prefix) {
+        this.addRules(Kind.RESOURCE_PREFIX, List.of(prefix));
+    }
+
+    /**
+     * Prevents a host class from being used by guest modules. Denied classes are never allowed, even if they are
+     * matched by an allow rule.
+     *
+     * @param name The fully qualified name of the class to deny.
+     */
+    public void deny(String name) {
+        this.addRules(Kind.DENIED_CLASS, List.of(name));
+    }
+
+    /**
+     * Prevents every class that is directly in a package from being used by guest modules. Deny rules override allow
+     * rules.
+     *
+     * @param packageName The fully qualified name of the package.
+     */
+    public void denyPackage(String packageName) {
+        this.addRules(Kind.DENIED_PACKAGE, List.of(packageName));
+    }
+
+    /**
+     * Prevents every class whose fully qualified name starts with a prefix from being used by guest modules. Deny rules
+     * override allow rules.
+     *
+     * @param prefix The prefix to deny.
+     */
+    public void denyPrefix(String prefix) {
+        this.addRules(Kind.DENIED_PREFIX, List.of(prefix));
+    }
+
+    /**
+     * Compiles the current rules and prevents any further changes. Freezing is not needed to share an access between
+     * class loaders, it only guarantees that guests will never be given more access.
+     *
+     * @return This host access.
+     */
+    public HostClassAccess freeze() {
+        Snapshot current;
+        do {
+            current = this.snapshot.get();
+            if (current.frozen) {
+                break;
+            }
+        }
+        while (!this.snapshot.compareAndSet(current, current.frozenCopy()));
+        this.snapshot.get().compiled();
+        return this;
+    }
+
+    /**
+     * @return True if the rules can no longer be changed.
+     */
+    public boolean isFrozen() {
+        return this.snapshot.get().frozen;
+    }
+
+    /**
+     * Gets a host access fixed to the current rules. Every lookup on the returned access uses the same snapshot, even if
+     * rules are added to this access afterward, so a task that makes many lookups, such as verification, sees one
+     * consistent set of rules. The returned access is frozen.
+     *
+     * @return A frozen host access with the current rules.
+     */
+    HostClassAccess pin() {
+        final Snapshot current = this.snapshot.get();
+        if (current.frozen) {
+            return this;
+        }
+        final Snapshot pinned = current.frozenCopy();
+        // The compiled rules are shared so their member tables are too.
+        pinned.compiled = current.compiled();
+        return new HostClassAccess(pinned);
+    }
+
+    /**
+     * Gets the version of the rules. The version starts at zero and increases by one with every change that adds a
+     * new rule, so it can be used to tell whether the rules changed since they were last checked.
+     *
+     * @return The current version.
+     */
+    public long getVersion() {
+        return this.snapshot.get().version();
     }
 
     /**
@@ -172,15 +359,272 @@ public final class HostClassAccess {
      * @return True if guest modules can use the class.
      */
     public boolean isAllowed(String className) {
-        return this.allowedClasses.contains(className);
+        return this.snapshot.get().compiled().isAllowed(className);
+    }
+
+    /**
+     * Checks if guest modules may read a resource of the host. Only plain relative paths can be allowed, a path that
+     * starts with a separator, contains a backslash, or has an empty, {@code .} or {@code ..} segment is always denied so
+     * that it can not escape an allowed prefix.
+     *
+     * @param name The path of the resource.
+     * @return True if guest modules can read the resource.
+     */
+    public boolean isResourceAllowed(String name) {
+        if (!isPlainResourceName(name)) {
+            return false;
+        }
+        final Rules rules = this.snapshot.get().compiled();
+        return rules.allowedResources.contains(name) || rules.resourcePrefixes.match(name) != 0;
+    }
+
+    // Checks that every segment of a resource path is a real name, so the
+    // path names the same file however the host class loader resolves it.
+    private static boolean isPlainResourceName(String name) {
+        if (name.isEmpty() || name.indexOf('\\') >= 0) {
+            return false;
+        }
+        int start = 0;
+        while (start <= name.length()) {
+            int end = name.indexOf('/', start);
+            if (end < 0) {
+                end = name.length();
+            }
+            final int length = end - start;
+            if (length == 0 || length <= 2 && name.startsWith(length == 1 ? "." : "..", start)) {
+                return false;
+            }
+            start = end + 1;
+        }
+        return true;
     }
 
     /**
-     * Allows all classes from {@link #SAFE_JDK} to be used by guest modules.
+     * Creates a fingerprint of the classes that guests may access. Two host accesses with the same rules have the same
+     * fingerprint, regardless of the order the rules were added in.
+     *
+     * @return A SHA-256 hash of the rules.
+     */
+    byte[] fingerprint() {
+        final Snapshot snapshot = this.snapshot.get();
+        snapshot.seal();
+        final MessageDigest digest = VerificationCache.sha256();
+        for (Kind kind : Kind.values()) {
+            addFingerprint(digest, kind.label, snapshot.get(kind));
+        }
+        return digest.digest();
+    }
+
+    private static void addFingerprint(MessageDigest digest, String kind, Set<String> names) {
+        for (String name : new TreeSet<>(names)) {
+            digest.update((kind + ':' + name + '\n').getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Gets the members of allowed classes that guests may use. The table is shared until the rules change.
+     *
+     * @param loader The loader used to find host classes, or null for the bootstrap loader.
+     * @return The members guests may use.
+     */
+    HostMemberTable members(ClassLoader loader) {
+        final Rules compiled = this.snapshot.get().compiled();
+        final ClassLoader key = loader != null ? loader : ClassLoader.getPlatformClassLoader();
+        return compiled.members.computeIfAbsent(key, hostLoader -> new HostMemberTable(compiled::isAllowed, compiled.allowedMembers, hostLoader));
+    }
+
+    /**
+     * Allows all classes from {@link #SAFE_JDK} to be used by guest modules. This also allows
+     * {@link Enum#valueOf(Class, String)}, which the compiler calls from the {@code valueOf} method of every enum.
      */
     public void allowJDK() {
-        for (String className : SAFE_JDK) {
-            this.allow(className);
+        this.allowAll(SAFE_JDK);
+        this.allowMember("java.lang.Enum", "valueOf", "(Ljava/lang/Class;Ljava/lang/String;)Ljava/lang/Enum;");
+    }
+
+    // Adds rules to the current snapshot if nothing has read it yet, or
+    // publishes a snapshot with the new rules added. Concurrent changes are
+    // retried against the snapshot that won, so no change is lost.
+    private void addRules(Kind kind, Collection<String> names) {
+        Snapshot current;
+        Snapshot next;
+        do {
+            current = this.snapshot.get();
+            if (current.frozen) {
+                throw new IllegalStateException("Can not change host access for '" + String.join("', '", names) + "' after it has been frozen.");
+            }
+            if (current.add(kind, names)) {
+                return;
+            }
+            next = current.with(kind, names);
+            if (next == current) {
+                return;
+            }
+        }
+        while (!this.snapshot.compareAndSet(current, next));
+    }
+
+    /**
+     * The kinds of rules, in the order they are added to the fingerprint.
+     */
+    private enum Kind {
+        CLASS("class"),
+        PACKAGE("package"),
+        PREFIX("prefix"),
+        DENIED_CLASS("!class"),
+        DENIED_PACKAGE("!package"),
+        DENIED_PREFIX("!prefix"),
+        MEMBER("member"),
+        RESOURCE("resource"),
+        RESOURCE_PREFIX("resourcePrefix");
+
+        private final String label;
+
+        Kind(String label) {
+            this.label = label;
+        }
+    }
+
+    /**
+     * A version of the rules. Rules are added to a snapshot in place until it is sealed by the first read, and it never
+     * changes after that. The compiled lookup is built the first time it is needed, later lookups do not lock.
+     */
+    private static final class Snapshot {
+
+        private final Map<Kind, Set<String>> rules;
+        private final boolean frozen;
+        private volatile Rules compiled;
+
+        // Guarded by this snapshot until it is sealed. Sets of rules shared
+        // with the previous snapshot are copied before they are first changed.
+        private long version;
+        private boolean sealed;
+        private final Set<Kind> owned = EnumSet.noneOf(Kind.class);
+
+        private Snapshot(long version, Map<Kind, Set<String>> rules, boolean frozen) {
+            this.version = version;
+            this.rules = rules;
+            this.frozen = frozen;
+            this.sealed = frozen;
+        }
+
+        // Only called once the snapshot is sealed.
+        private Set<String> get(Kind kind) {
+            return this.rules.getOrDefault(kind, Set.of());
+        }
+
+        private synchronized long version() {
+            return this.version;
+        }
+
+        // Prevents any more rules from being added in place, so the rules can
+        // be read without locking.
+        private synchronized void seal() {
+            this.sealed = true;
+        }
+
+        // Adds rules in place if nothing has read this snapshot yet. Returns
+        // false if it is sealed.
+        private synchronized boolean add(Kind kind, Collection<String> names) {
+            if (this.sealed) {
+                return false;
+            }
+            Set<String> rules = this.rules.getOrDefault(kind, Set.of());
+            if (rules.containsAll(names)) {
+                return true;
+            }
+            if (this.owned.add(kind)) {
+                rules = new HashSet<>(rules);
+                this.rules.put(kind, rules);
+            }
+            rules.addAll(names);
+            this.version++;
+            return true;
+        }
+
+        // Creates the next version with more rules of one kind, or returns
+        // this snapshot if every rule is already present. Only called once
+        // the snapshot is sealed.
+        private Snapshot with(Kind kind, Collection<String> names) {
+            final Set<String> existing = this.get(kind);
+            if (existing.containsAll(names)) {
+                return this;
+            }
+            final Set<String> combined = new HashSet<>(existing);
+            combined.addAll(names);
+            final Map<Kind, Set<String>> rules = new EnumMap<>(Kind.class);
+            rules.putAll(this.rules);
+            rules.put(kind, combined);
+            final Snapshot next = new Snapshot(this.version + 1, rules, false);
+            next.owned.add(kind);
+            return next;
+        }
+
+        // Creates a frozen snapshot with the same rules, sealing this one.
+        private Snapshot frozenCopy() {
+            this.seal();
+            return new Snapshot(this.version(), this.rules, true);
+        }
+
+        private Rules compiled() {
+            final Rules compiled = this.compiled;
+            return compiled != null ? compiled : this.compile();
+        }
+
+        private synchronized Rules compile() {
+            this.sealed = true;
+            if (this.compiled == null) {
+                this.compiled = new Rules(this);
+            }
+            return this.compiled;
+        }
+    }
+
+    /**
+     * An immutable compiled copy of the rules. Exact names and packages are held in open addressing tables that can be
+     * queried with part of a name, and prefixes are held in a trie, so a lookup is a single pass over the class name.
+     */
+    private static final class Rules {
+
+        private final CharRangeSet allowedClasses;
+        private final CharRangeSet deniedClasses;
+        private final CharRangeSet allowedPackages;
+        private final CharRangeSet deniedPackages;
+        private final PrefixTrie prefixes = new PrefixTrie();
+        private final Set<String> allowedMembers;
+        private final CharRangeSet allowedResources;
+        private final PrefixTrie resourcePrefixes = new PrefixTrie();
+
+        /**
+         * The member tables built from these rules for each host class loader.
+         */
+        private final Map<ClassLoader, HostMemberTable> members = new ConcurrentHashMap<>();
+
+        private Rules(Snapshot snapshot) {
+            this.allowedMembers = snapshot.get(Kind.MEMBER);
+            this.allowedResources = new CharRangeSet(snapshot.get(Kind.RESOURCE));
+            for (String prefix : snapshot.get(Kind.RESOURCE_PREFIX)) {
+                this.resourcePrefixes.put(prefix, ALLOW);
+            }
+            this.allowedClasses = new CharRangeSet(snapshot.get(Kind.CLASS));
+            this.deniedClasses = new CharRangeSet(snapshot.get(Kind.DENIED_CLASS));
+            this.allowedPackages = new CharRangeSet(snapshot.get(Kind.PACKAGE));
+            this.deniedPackages = new CharRangeSet(snapshot.get(Kind.DENIED_PACKAGE));
+            for (String prefix : snapshot.get(Kind.PREFIX)) {
+                this.prefixes.put(prefix, ALLOW);
+            }
+            for (String prefix : snapshot.get(Kind.DENIED_PREFIX)) {
+                this.prefixes.put(prefix, DENY);
+            }
+        }
+
+        private boolean isAllowed(String className) {
+            final int prefixes = this.prefixes.match(className);
+            final int packageEnd = Math.max(className.lastIndexOf('.'), 0);
+            if ((prefixes & DENY) != 0 || this.deniedClasses.contains(className) || this.deniedPackages.contains(className, 0, packageEnd)) {
+                return false;
+            }
+            return (prefixes & ALLOW) != 0 || this.allowedClasses.contains(className) || this.allowedPackages.contains(className, 0, packageEnd);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,25 @@
+package dev.sandstonemc.sieve;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Emitted when a guest module asks {@link SieveClassLoader} for a host class.
+ */
+@Name("dev.sandstonemc.sieve.HostClassAccess")
+@Label("Host Class Access")
+@Category("Sieve")
+@Description("A guest module requested a host class")
+final class HostClassAccessEvent extends jdk.jfr.Event {
+
+    @Label("Module")
+    String module;
+
+    @Label("Class Name")
+    String className;
+
+    @Label("Allowed")
+    boolean allowed;
+}
@@ -0,0 +1,171 @@
+package dev.sandstonemc.sieve;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * The fields and methods of allowed host classes that guests may use. A member may be used when every type in its
+ * descriptor is primitive or an allowed host class, or when it has been allowed explicitly. The members of a class are
+ * found with reflection the first time a guest references the class, and are then kept as a compact set of names and
+ * descriptors, so later checks never reflect again.
+ * <p>
+ * The members of a class include the public and protected members it inherits, as the JVM resolves a reference
+ * through the class it names rather than the class that declares the member. Each class also has a digest of its
+ * members, so cached verification results can be discarded when a host class changes.
+ */
+final class HostMemberTable {
+
+    private static final Members NONE = new Members(new CharRangeSet(List.of()), digest(Set.of()));
+
+    private final Predicate<String> allowedClasses;
+    private final Set<String> allowedMembers;
+    private final ClassLoader loader;
+
+    /**
+     * The members guests may use for each host class that has been looked up, by fully qualified name.
+     */
+    private final Map<String, Members> members = new ConcurrentHashMap<>();
+
+    /**
+     * @param allowedClasses Checks if guests may use a host class.
+     * @param allowedMembers Members that are allowed regardless of their descriptor. Each is the fully qualified name of
+     *                       the declaring class, a dot, the name of the member and then its descriptor.
+     * @param loader         The loader used to find host classes.
+     */
+    HostMemberTable(Predicate<String> allowedClasses, Set<String> allowedMembers, ClassLoader loader) {
+        this.allowedClasses = allowedClasses;
+        this.allowedMembers = allowedMembers;
+        this.loader = loader;
+    }
+
+    /**
+     * Checks if guests may use a member of a host class. The class itself is expected to be allowed.
+     *
+     * @param className The fully qualified name of the class the member is referenced through.
+     * @param member    The name of the member followed by its descriptor, such as {@code size()I}.
+     * @return True if the member exists and guests may use it.
+     */
+    boolean isAllowed(String className, String member) {
+        return this.members.computeIfAbsent(className, this::compute).names().contains(member);
+    }
+
+    /**
+     * Gets a digest of the members guests may use from a host class. The digest changes if a member is added to or
+     * removed from the class, or if the class can no longer be found.
+     *
+     * @param className The fully qualified name of the class.
+     * @return A SHA-256 hash of the members of the class.
+     */
+    VerificationCache.Digest digest(String className) {
+        return this.members.computeIfAbsent(className, this::compute).digest();
+    }
+
+    private Members compute(String className) {
+        final Class<?> type;
+        try {
+            type = Class.forName(className, false, this.loader);
+        }
+        catch (ClassNotFoundException | LinkageError e) {
+            return NONE;
+        }
+        final Set<String> members = new HashSet<>();
+        try {
+            for (Constructor<?> constructor : type.getDeclaredConstructors()) {
+                if (isVisible(constructor.getModifiers())) {
+                    this.add(members, type, "<init>", constructor.getParameterTypes(), void.class);
+                }
+            }
+            final Set<Class<?>> visited = new HashSet<>();
+            this.addInherited(members, type, visited);
+            // Interface methods resolve to the public methods of Object when
+            // the interface does not declare them.
+            if (type.isInterface()) {
+                this.addInherited(members, Object.class, visited);
+            }
+        }
+        catch (LinkageError e) {
+            // A member refers to a class the host can not load. Guests could
+            // not link against the class either.
+            return NONE;
+        }
+        return members.isEmpty() ? NONE : new Members(new CharRangeSet(members), digest(members));
+    }
+
+    private static VerificationCache.Digest digest(Set<String> members) {
+        final MessageDigest digest = VerificationCache.sha256();
+        for (String member : new TreeSet<>(members)) {
+            digest.update((member + '\n').getBytes(StandardCharsets.UTF_8));
+        }
+        return VerificationCache.Digest.of(digest.digest());
+    }
+
+    private void addInherited(Set<String> members, Class<?> type, Set<Class<?>> visited) {
+        if (type == null || !visited.add(type)) {
+            return;
+        }
+        for (Method method : type.getDeclaredMethods()) {
+            if (isVisible(method.getModifiers())) {
+                this.add(members, type, method.getName(), method.getParameterTypes(), method.getReturnType());
+            }
+        }
+        for (Field field : type.getDeclaredFields()) {
+            if (isVisible(field.getModifiers())) {
+                final String member = field.getName() + field.getType().descriptorString();
+                if (this.isAllowed(field.getType()) || this.allowedMembers.contains(type.getName() + '.' + member)) {
+                    members.add(member);
+                }
+            }
+        }
+        this.addInherited(members, type.getSuperclass(), visited);
+        for (Class<?> implemented : type.getInterfaces()) {
+            this.addInherited(members, implemented, visited);
+        }
+    }
+
+    private void add(Set<String> members, Class<?> declaringClass, String name, Class<?>[] parameters, Class<?> returnType) {
+        final StringBuilder member = new StringBuilder(name).append('(');
+        boolean allowed = this.isAllowed(returnType);
+        for (Class<?> parameter : parameters) {
+            member.append(parameter.descriptorString());
+            allowed &= this.isAllowed(parameter);
+        }
+        member.append(')').append(returnType.descriptorString());
+        final String signature = member.toString();
+        if (allowed || this.allowedMembers.contains(declaringClass.getName() + '.' + signature)) {
+            members.add(signature);
+        }
+    }
+
+    private boolean isAllowed(Class<?> type) {
+        while (type.isArray()) {
+            type = type.getComponentType();
+        }
+        return type.isPrimitive() || this.allowedClasses.test(type.getName());
+    }
+
+    // Guests are never in the same package as a host class, so only public
+    // and protected members can be accessed.
+    private static boolean isVisible(int modifiers) {
+        return (modifiers & (Modifier.PUBLIC | Modifier.PROTECTED)) != 0;
+    }
+
+    /**
+     * The members of a host class that guests may use.
+     *
+     * @param names  The name and descriptor of each member.
+     * @param digest A hash of the names.
+     */
+    private record Members(CharRangeSet names, VerificationCache.Digest digest) {
+    }
+}
@@ -28,4 +28,11 @@ public final class InvalidClassNameException extends IllegalArgumentException {
         super(details, cause);
         this.className = className;
     }
+
+    /**
+     * @return The fully qualified name of the invalid guest class.
+     */
+    public String getClassName() {
+        return this.className;
+    }
 }
\ No newline at end of file
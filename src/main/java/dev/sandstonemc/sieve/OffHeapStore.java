@@ -0,0 +1,67 @@
+package dev.sandstonemc.sieve;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Stores class bytes in direct buffers outside of the heap. Small classes are packed into shared chunks so that each
+ * class does not need its own native allocation. A chunk is freed by the garbage collector once every class in it has
+ * been released.
+ */
+final class OffHeapStore {
+
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    /**
+     * Classes larger than this are given their own buffer rather than wasting the end of a chunk.
+     */
+    private static final int MAX_PACKED_SIZE = CHUNK_SIZE / 16;
+
+    private ByteBuffer chunk;
+
+    /**
+     * Reads a class file directly into off-heap memory, without copying it through the heap.
+     *
+     * @param path The path to the class file.
+     * @return An entry holding the bytes of the file.
+     * @throws IOException If the file could not be read.
+     */
+    GuestClassEntry read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Class file '" + path + "' is too large.");
+            }
+            final ByteBuffer buffer = this.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Keep reading until the buffer is full or the file ends.
+            }
+            return new GuestClassEntry.Direct(buffer.flip());
+        }
+    }
+
+    /**
+     * Copies class bytes into off-heap memory.
+     *
+     * @param bytes The bytes of the class.
+     * @return An entry holding a copy of the bytes.
+     */
+    GuestClassEntry copy(byte[] bytes) {
+        return new GuestClassEntry.Direct(this.allocate(bytes.length).put(bytes).flip());
+    }
+
+    private synchronized ByteBuffer allocate(int size) {
+        if (size > MAX_PACKED_SIZE) {
+            return ByteBuffer.allocateDirect(size);
+        }
+        if (this.chunk == null || this.chunk.remaining() < size) {
+            this.chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        }
+        final ByteBuffer buffer = this.chunk.slice(this.chunk.position(), size);
+        this.chunk.position(this.chunk.position() + size);
+        return buffer;
+    }
+}
@@ -0,0 +1,120 @@
+package dev.sandstonemc.sieve;
+
+import java.util.Arrays;
+
+/**
+ * A character trie of name prefixes. Every prefix of a name can be found in a single pass over the name without
+ * allocating, regardless of how many prefixes have been added. Each prefix carries a set of flag bits which are
+ * combined when a name matches more than one prefix.
+ */
+final class PrefixTrie {
+
+    private static final char[] NO_KEYS = new char[0];
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private final Node root = new Node();
+    private int size;
+
+    /**
+     * Adds a prefix to the trie. Adding a prefix that already exists combines the new flags with the existing flags.
+     *
+     * @param prefix The prefix to add.
+     * @param flags  The flags for the prefix, must not be zero.
+     */
+    void put(String prefix, int flags) {
+        if (flags == 0) {
+            throw new IllegalArgumentException("Prefix flags can not be zero.");
+        }
+        Node node = this.root;
+        for (int index = 0; index < prefix.length(); index++) {
+            node = node.childOrCreate(prefix.charAt(index));
+        }
+        if (node.prefix == null) {
+            node.prefix = prefix;
+            this.size++;
+        }
+        node.flags |= flags;
+    }
+
+    /**
+     * Finds the shortest prefix in the trie that the name starts with.
+     *
+     * @param name The name to check.
+     * @return The matching prefix, or null if the name does not start with any prefix.
+     */
+    String find(CharSequence name) {
+        Node node = this.root;
+        for (int index = 0; node != null; index++) {
+            if (node.prefix != null) {
+                return node.prefix;
+            }
+            if (index == name.length()) {
+                return null;
+            }
+            node = node.child(name.charAt(index));
+        }
+        return null;
+    }
+
+    /**
+     * Combines the flags of every prefix in the trie that the name starts with.
+     *
+     * @param name The name to check.
+     * @return The combined flags, or zero if the name does not start with any prefix.
+     */
+    int match(CharSequence name) {
+        int flags = 0;
+        Node node = this.root;
+        for (int index = 0; node != null; index++) {
+            flags |= node.flags;
+            if (index == name.length()) {
+                break;
+            }
+            node = node.child(name.charAt(index));
+        }
+        return flags;
+    }
+
+    /**
+     * @return The number of distinct prefixes in the trie.
+     */
+    int size() {
+        return this.size;
+    }
+
+    private static final class Node {
+
+        // Children are kept sorted by their character so they can be found
+        // with a binary search. Most nodes in a package trie have very few
+        // children so this is smaller than a table per node.
+        private char[] keys = NO_KEYS;
+        private Node[] children = NO_CHILDREN;
+        private String prefix;
+        private int flags;
+
+        private Node child(char key) {
+            final int index = Arrays.binarySearch(this.keys, key);
+            return index >= 0 ? this.children[index] : null;
+        }
+
+        private Node childOrCreate(char key) {
+            int index = Arrays.binarySearch(this.keys, key);
+            if (index >= 0) {
+                return this.children[index];
+            }
+            index = -index - 1;
+            final int length = this.keys.length;
+            final char[] keys = new char[length + 1];
+            final Node[] children = new Node[length + 1];
+            System.arraycopy(this.keys, 0, keys, 0, index);
+            System.arraycopy(this.children, 0, children, 0, index);
+            System.arraycopy(this.keys, index, keys, index + 1, length - index);
+            System.arraycopy(this.children, index, children, index + 1, length - index);
+            keys[index] = key;
+            children[index] = new Node();
+            this.keys = keys;
+            this.children = children;
+            return children[index];
+        }
+    }
+}
@@ -31,6 +31,13 @@ public final class ProhibitedClassException extends ClassNotFoundException {
         this.className = className;
     }
 
+    /**
+     * @return The fully qualified name of the prohibited class.
+     */
+    public String getClassName() {
+        return this.className;
+    }
+
     /**
      * Creates an exception with the default message for the provided class.
      *
@@ -40,4 +47,28 @@ public final class ProhibitedClassException extends ClassNotFoundException {
     public static ProhibitedClassException of(String className) {
         return new ProhibitedClassException(className, "Blocked attempt to access restricted class! " + className);
     }
-}
\ No newline at end of file
+
+    /**
+     * Creates an exception for a guest class that references a prohibited class.
+     *
+     * @param guestClassName The fully qualified name of the guest class.
+     * @param className      The fully qualified name of the class that could not be accessed.
+     * @return A throwable exception for the given reference.
+     */
+    public static ProhibitedClassException referencedBy(String guestClassName, String className) {
+        return new ProhibitedClassException(className, "Guest class '" + guestClassName + "' references restricted class! " + className);
+    }
+
+    /**
+     * Creates an exception for a guest class that references a prohibited field or method of a host class.
+     *
+     * @param guestClassName The fully qualified name of the guest class.
+     * @param className      The fully qualified name of the class the member was referenced through.
+     * @param memberName     The name of the member.
+     * @param descriptor     The descriptor of the member.
+     * @return A throwable exception for the given reference.
+     */
+    public static ProhibitedClassException memberReferencedBy(String guestClassName, String className, String memberName, String descriptor) {
+        return new ProhibitedClassException(className, "Guest class '" + guestClassName + "' references restricted member! " + className + '.' + memberName + descriptor);
+    }
+}
@@ -1,41 +1,417 @@
 package dev.sandstonemc.sieve;
 
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
- * Adds a simple sandbox to a classloader.
+ * Adds a simple sandbox to a classloader. The loader is parallel capable, classes are locked per name rather than
+ * globally so guest classes can be loaded from many threads at once.
+ * <p>
+ * Resources are looked up in the guest module first, and are read straight from the provider. Resources of the host
+ * are only visible if they have been allowed by the host access, and resources of other guest modules are never
+ * visible.
  */
 public final class SieveClassLoader extends ClassLoader {
 
+    static {
+        ClassLoader.registerAsParallelCapable();
+    }
+
+    /**
+     * Set on threads that are preloading classes, so that the classes they define are not recorded as needed. Preloaded
+     * classes are carried over to the trace being recorded instead, see {@link ClassLoadTrace}.
+     */
+    private static final ThreadLocal<Boolean> PRELOADING = new ThreadLocal<>();
+
     private final ClassLoader root;
     private final GuestClassProvider guestAccess;
     private final HostClassAccess hostAccess;
 
+    /**
+     * The runtime this loader is part of, or null if the loader is used on its own. Classes in packages exported by
+     * other modules of the runtime are loaded from those modules.
+     */
+    private final SieveRuntime runtime;
+
+    /**
+     * The counters for the guest module, or null if metrics are not recorded.
+     */
+    private final SieveMetrics.Counters metrics;
+
+    /**
+     * The hooks rewritten guest classes call to be accounted, or null if they are not rewritten for accounting.
+     */
+    private final Class<?> accountingHooks;
+
+    /**
+     * The trace guest classes are recorded to when they are first needed, or null if loads are not traced.
+     */
+    private final ClassLoadTrace loadTrace;
+
+    /**
+     * Guest classes that have already been defined by this loader. Repeat lookups are served from here without taking
+     * the per-name lock.
+     */
+    private final Map<String, Class<?>> definedClasses = new ConcurrentHashMap<>();
+
+    /**
+     * Opens the URLs of resources of the guest module.
+     */
+    private final ResourceHandler resourceHandler;
+
     public SieveClassLoader(GuestClassProvider userEntries, HostClassAccess hostAccess) {
         this(userEntries, hostAccess, SieveClassLoader.class.getClassLoader());
     }
 
     public SieveClassLoader(GuestClassProvider guestAccess, HostClassAccess hostAccess, ClassLoader root) {
+        this(guestAccess, hostAccess, root, null);
+    }
+
+    SieveClassLoader(GuestClassProvider guestAccess, HostClassAccess hostAccess, ClassLoader root, SieveRuntime runtime) {
+        super(guestAccess.getName(), ClassLoader.getSystemClassLoader());
+        if (guestAccess.hasReleasedClasses()) {
+            throw new IllegalStateException("The provider '" + guestAccess.getName() + "' is already used by another class loader, which released the classes it stores off-heap.");
+        }
         this.root = root;
         this.guestAccess = guestAccess;
         this.hostAccess = hostAccess;
+        this.runtime = runtime;
+        this.metrics = guestAccess.metrics();
+        this.accountingHooks = guestAccess.accountingId() >= 0 ? GuestAccounting.hooks(guestAccess.accountingId()) : null;
+        this.loadTrace = guestAccess.loadTrace();
+        this.resourceHandler = new ResourceHandler(guestAccess);
     }
 
     @Override
-    public Class<?> loadClass(String name) throws ClassNotFoundException {
-        if (guestAccess.contains(name)) {
-            return defineGuestClass(this.guestAccess.get(name), name);
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        // Rewritten guest classes call the accounting hooks of their module,
+        // which are always linked regardless of the host access.
+        if (this.accountingHooks != null && name.equals(this.accountingHooks.getName())) {
+            return this.accountingHooks;
+        }
+        final Class<?> guestClass = this.loadGuestClass(name);
+        if (guestClass != null) {
+            if (this.loadTrace != null && PRELOADING.get() == null) {
+                this.loadTrace.record(name);
+            }
+            if (resolve) {
+                resolveClass(guestClass);
+            }
+            return guestClass;
+        }
+        if (this.runtime != null) {
+            final SieveClassLoader exporter = this.runtime.findExporter(name);
+            if (exporter != null && exporter != this) {
+                final Class<?> exportedClass = exporter.loadGuestClass(name);
+                if (exportedClass != null) {
+                    return exportedClass;
+                }
+            }
         }
-        if (this.hostAccess.isAllowed(name)) {
+        final boolean allowed = this.hostAccess.isAllowed(name);
+        if (this.metrics != null) {
+            this.metrics.recordHostAccess(allowed);
+        }
+        final HostClassAccessEvent event = new HostClassAccessEvent();
+        if (event.shouldCommit()) {
+            event.module = this.guestAccess.getName();
+            event.className = name;
+            event.allowed = allowed;
+            event.commit();
+        }
+        if (allowed) {
             return this.root.loadClass(name);
         }
         throw ProhibitedClassException.of(name);
     }
 
-    // Defines a class from a guest module.
-    private Class<?> defineGuestClass(byte[] classBytes, String name) {
-        final Class<?> loadedClass = this.defineClass(name, classBytes, 0, classBytes.length);
-        if (loadedClass != null) {
-            resolveClass(loadedClass);
+    /**
+     * Defines the classes of a trace in the background, in the order they were needed when the trace was recorded.
+     * The host can then start as usual, classes that have already been preloaded are returned immediately and any
+     * other class is loaded lazily as it would be without a trace. Classes in the trace that are no longer part of the
+     * guest module are skipped, as are classes that fail to define, which fail again when they are needed.
+     * <p>
+     * Preloading reads and defines classes along with their superclasses and interfaces, but does not initialize them,
+     * so no guest code runs on the preloading threads.
+     *
+     * @param trace    The trace to replay, usually loaded with {@link ClassLoadTrace#load(java.nio.file.Path)}.
+     * @param executor Runs the preloading tasks.
+     * @param threads  The number of tasks that define classes at once.
+     * @return A future completed with the number of traced classes that were loaded once every task has finished.
+     */
+    public CompletableFuture<Integer> preload(ClassLoadTrace trace, Executor executor, int threads) {
+        final List<String> classNames = trace.getClassNames();
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger loaded = new AtomicInteger();
+        final CompletableFuture<?>[] tasks = new CompletableFuture<?>[Math.max(1, threads)];
+        for (int task = 0; task < tasks.length; task++) {
+            tasks[task] = CompletableFuture.runAsync(() -> {
+                PRELOADING.set(Boolean.TRUE);
+                try {
+                    for (int index = next.getAndIncrement(); index < classNames.size(); index = next.getAndIncrement()) {
+                        final String name = classNames.get(index);
+                        if (this.preloadClass(name)) {
+                            loaded.incrementAndGet();
+                            if (this.loadTrace != null) {
+                                this.loadTrace.recordPreloaded(name, trace.getLoadTime(name));
+                            }
+                        }
+                    }
+                }
+                finally {
+                    PRELOADING.remove();
+                }
+            }, executor);
+        }
+        return CompletableFuture.allOf(tasks).thenApply(done -> loaded.get());
+    }
+
+    // Defines a single guest class, returning false if it is not part of the
+    // module or could not be defined.
+    private boolean preloadClass(String name) {
+        try {
+            return this.loadGuestClass(name) != null;
+        }
+        catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    @Override
+    public URL getResource(String name) {
+        final URL guestResource = this.findResource(name);
+        if (guestResource != null) {
+            return guestResource;
+        }
+        return this.hostAccess.isResourceAllowed(name) ? this.root.getResource(name) : null;
+    }
+
+    @Override
+    public Enumeration<URL> getResources(String name) throws IOException {
+        final List<URL> resources = new ArrayList<>(1);
+        final URL guestResource = this.findResource(name);
+        if (guestResource != null) {
+            resources.add(guestResource);
+        }
+        if (this.hostAccess.isResourceAllowed(name)) {
+            resources.addAll(Collections.list(this.root.getResources(name)));
+        }
+        return Collections.enumeration(resources);
+    }
+
+    @Override
+    public InputStream getResourceAsStream(String name) {
+        final ByteBuffer guestResource = this.guestAccess.getResource(name);
+        if (guestResource != null) {
+            return new GuestResourceStream(guestResource);
+        }
+        return this.hostAccess.isResourceAllowed(name) ? this.root.getResourceAsStream(name) : null;
+    }
+
+    @Override
+    protected URL findResource(String name) {
+        if (!this.guestAccess.containsResource(name)) {
+            return null;
+        }
+        try {
+            return this.resourceHandler.toURL(name);
+        }
+        catch (URISyntaxException | MalformedURLException e) {
+            return null;
+        }
+    }
+
+    @Override
+    protected Enumeration<URL> findResources(String name) {
+        final URL guestResource = this.findResource(name);
+        return guestResource != null ? Collections.enumeration(List.of(guestResource)) : Collections.emptyEnumeration();
+    }
+
+    // Loads a class from this loader's own guest module, or returns null if
+    // the module does not contain the class.
+    private Class<?> loadGuestClass(String name) {
+        final Class<?> definedClass = this.definedClasses.get(name);
+        if (definedClass != null) {
+            return definedClass;
+        }
+        if (!this.guestAccess.contains(name)) {
+            return null;
+        }
+        synchronized (this.getClassLoadingLock(name)) {
+            // Another thread may have defined the class while we were
+            // waiting on the lock.
+            Class<?> loadedClass = this.findLoadedClass(name);
+            if (loadedClass == null) {
+                loadedClass = defineGuestClass(name);
+            }
+            this.definedClasses.put(name, loadedClass);
+            // The provider no longer needs to keep the bytes of the class.
+            this.guestAccess.markDefined(name);
+            return loadedClass;
+        }
+    }
+
+    // Defines a class from a guest module. Direct buffers, such as those
+    // backed by a mapped JAR file, are defined without being copied unless
+    // the class is rewritten for accounting.
+    private Class<?> defineGuestClass(String name) {
+        final GuestClassDefineEvent event = new GuestClassDefineEvent();
+        final boolean timed = this.metrics != null || event.isEnabled();
+        event.begin();
+        final long start = timed ? System.nanoTime() : 0;
+        ByteBuffer classBytes = this.guestAccess.getBuffer(name);
+        final int size = classBytes.remaining();
+        final long read = timed ? System.nanoTime() : 0;
+        if (this.accountingHooks != null) {
+            final byte[] instrumented = GuestInstrumenter.instrument(classBytes, this.accountingHooks);
+            if (instrumented != null) {
+                classBytes = ByteBuffer.wrap(instrumented);
+            }
+        }
+        final Class<?> loadedClass = this.defineClass(name, classBytes, (ProtectionDomain) null);
+        if (timed) {
+            final long defined = System.nanoTime();
+            if (this.metrics != null) {
+                this.metrics.recordDefine(size, read - start, defined - read);
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.module = this.guestAccess.getName();
+                event.className = name;
+                event.size = size;
+                event.readTime = read - start;
+                event.defineTime = defined - read;
+                event.commit();
+            }
         }
         return loadedClass;
     }
-}
\ No newline at end of file
+
+    /**
+     * Opens the URLs of guest resources. A URL always reads from the provider of the loader that created it, so it can
+     * not be used to read the resources of another module.
+     */
+    private static final class ResourceHandler extends URLStreamHandler {
+
+        private static final String PROTOCOL = "sieve";
+
+        /**
+         * {@code URL.of(URI, URLStreamHandler)}, which replaces the URL constructors deprecated in Java 20, or null if
+         * the runtime is older.
+         */
+        private static final MethodHandle URL_OF = findUrlOf();
+
+        private final GuestClassProvider guestAccess;
+
+        private ResourceHandler(GuestClassProvider guestAccess) {
+            this.guestAccess = guestAccess;
+        }
+
+        private static MethodHandle findUrlOf() {
+            try {
+                return MethodHandles.publicLookup().findStatic(URL.class, "of", MethodType.methodType(URL.class, URI.class, URLStreamHandler.class));
+            }
+            catch (NoSuchMethodException | IllegalAccessException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Creates the URL of a resource. The name is escaped as a URI path, so names containing characters such as
+         * {@code #} or {@code ?} are read back whole by {@link ResourceConnection}.
+         *
+         * @param name The path of the resource relative to the root of the module.
+         * @return The URL of the resource.
+         */
+        @SuppressWarnings("deprecation")
+        private URL toURL(String name) throws URISyntaxException, MalformedURLException {
+            final URI uri = new URI(PROTOCOL, this.guestAccess.getName(), "/" + name, null, null);
+            if (URL_OF == null) {
+                return new URL(null, uri.toString(), this);
+            }
+            try {
+                return (URL) URL_OF.invokeExact(uri, (URLStreamHandler) this);
+            }
+            catch (MalformedURLException | RuntimeException | Error e) {
+                throw e;
+            }
+            catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        protected URLConnection openConnection(URL url) {
+            return new ResourceConnection(url, this.guestAccess);
+        }
+    }
+
+    private static final class ResourceConnection extends URLConnection {
+
+        private final GuestClassProvider guestAccess;
+        private final String name;
+
+        private ResourceConnection(URL url, GuestClassProvider guestAccess) {
+            super(url);
+            this.guestAccess = guestAccess;
+            this.name = resourceName(url);
+        }
+
+        // Decodes the resource name from the path of a URL, or returns null if
+        // the URL does not name a resource.
+        private static String resourceName(URL url) {
+            try {
+                final String path = url.toURI().getPath();
+                return path != null && path.startsWith("/") ? path.substring(1) : null;
+            }
+            catch (URISyntaxException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (this.name == null || !this.guestAccess.containsResource(this.name)) {
+                throw new FileNotFoundException(this.url.toString());
+            }
+            this.connected = true;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            final ByteBuffer resource = this.name != null ? this.guestAccess.getResource(this.name) : null;
+            if (resource == null) {
+                throw new FileNotFoundException(this.url.toString());
+            }
+            this.connected = true;
+            return new GuestResourceStream(resource);
+        }
+
+        @Override
+        public long getContentLengthLong() {
+            final ByteBuffer resource = this.name != null ? this.guestAccess.getResource(this.name) : null;
+            return resource != null ? resource.remaining() : -1;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package dev.sandstonemc.sieve;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects load time metrics from {@link SieveClassLoader} and {@link GuestClassProvider}. Metrics are grouped by the
+ * name of the guest module that caused them, so slow starts can be attributed to specific modules. Counters are
+ * striped, so recording from many threads does not contend. The same metrics can be shared by many loaders.
+ * <p>
+ * The same measurements are also emitted as JFR events when a recording is active, see {@link GuestClassDefineEvent},
+ * {@link GuestClassValidateEvent} and {@link HostClassAccessEvent}.
+ */
+public final class SieveMetrics {
+
+    private final Map<String, Counters> modules = new ConcurrentHashMap<>();
+
+    /**
+     * Gets the counters for a guest module, creating them if needed. Callers should keep the counters rather than
+     * looking them up for each class.
+     *
+     * @param module The name of the guest module.
+     * @return The counters for the module.
+     */
+    Counters module(String module) {
+        return this.modules.computeIfAbsent(module, name -> new Counters());
+    }
+
+    /**
+     * Takes a snapshot of the current counters. Counters that are updated while the snapshot is taken may or may not
+     * be included.
+     *
+     * @return The current values, in total and for each module.
+     */
+    public Snapshot snapshot() {
+        final Map<String, ModuleSnapshot> modules = new TreeMap<>();
+        ModuleSnapshot total = ModuleSnapshot.EMPTY;
+        for (Map.Entry<String, Counters> entry : this.modules.entrySet()) {
+            final ModuleSnapshot module = entry.getValue().snapshot();
+            modules.put(entry.getKey(), module);
+            total = total.plus(module);
+        }
+        return new Snapshot(total, Map.copyOf(modules));
+    }
+
+    /**
+     * Resets every counter to zero. The counters are kept, as loaders and providers hold on to the counters of their
+     * module and keep recording into them. Counters that are updated while they are reset may keep part of the update.
+     */
+    public void reset() {
+        for (Counters counters : this.modules.values()) {
+            counters.reset();
+        }
+    }
+
+    /**
+     * The metrics of every module at a point in time.
+     *
+     * @param total   The sum of every module.
+     * @param modules The metrics of each module, by module name.
+     */
+    public record Snapshot(ModuleSnapshot total, Map<String, ModuleSnapshot> modules) {
+    }
+
+    /**
+     * The metrics of a single module at a point in time.
+     *
+     * @param classesDefined   The number of guest classes defined.
+     * @param bytesDefined     The total size of the guest classes defined.
+     * @param readNanos        The time spent reading guest class bytes from their backing store.
+     * @param classesValidated The number of guest class names that were validated.
+     * @param validationNanos  The time spent validating guest class names.
+     * @param defineNanos      The time spent defining guest classes in the JVM.
+     * @param hostAllowed      The number of host class lookups that were allowed.
+     * @param hostProhibited   The number of host class lookups that were prohibited.
+     */
+    public record ModuleSnapshot(long classesDefined, long bytesDefined, long readNanos, long classesValidated,
+                                 long validationNanos, long defineNanos, long hostAllowed, long hostProhibited) {
+
+        static final ModuleSnapshot EMPTY = new ModuleSnapshot(0, 0, 0, 0, 0, 0, 0, 0);
+
+        ModuleSnapshot plus(ModuleSnapshot other) {
+            return new ModuleSnapshot(this.classesDefined + other.classesDefined, this.bytesDefined + other.bytesDefined,
+                    this.readNanos + other.readNanos, this.classesValidated + other.classesValidated,
+                    this.validationNanos + other.validationNanos, this.defineNanos + other.defineNanos,
+                    this.hostAllowed + other.hostAllowed, this.hostProhibited + other.hostProhibited);
+        }
+    }
+
+    /**
+     * The live counters of a single module.
+     */
+    static final class Counters {
+
+        private final LongAdder classesDefined = new LongAdder();
+        private final LongAdder bytesDefined = new LongAdder();
+        private final LongAdder readNanos = new LongAdder();
+        private final LongAdder classesValidated = new LongAdder();
+        private final LongAdder validationNanos = new LongAdder();
+        private final LongAdder defineNanos = new LongAdder();
+        private final LongAdder hostAllowed = new LongAdder();
+        private final LongAdder hostProhibited = new LongAdder();
+
+        void recordDefine(int bytes, long readNanos, long defineNanos) {
+            this.classesDefined.increment();
+            this.bytesDefined.add(bytes);
+            this.readNanos.add(readNanos);
+            this.defineNanos.add(defineNanos);
+        }
+
+        void recordValidation(long nanos) {
+            this.classesValidated.increment();
+            this.validationNanos.add(nanos);
+        }
+
+        void recordHostAccess(boolean allowed) {
+            (allowed ? this.hostAllowed : this.hostProhibited).increment();
+        }
+
+        private void reset() {
+            this.classesDefined.reset();
+            this.bytesDefined.reset();
+            this.readNanos.reset();
+            this.classesValidated.reset();
+            this.validationNanos.reset();
+            this.defineNanos.reset();
+            this.hostAllowed.reset();
+            this.hostProhibited.reset();
+        }
+
+        private ModuleSnapshot snapshot() {
+            return new ModuleSnapshot(this.classesDefined.sum(), this.bytesDefined.sum(), this.readNanos.sum(),
+                    this.classesValidated.sum(), this.validationNanos.sum(), this.defineNanos.sum(),
+                    this.hostAllowed.sum(), this.hostProhibited.sum());
+        }
+    }
+}
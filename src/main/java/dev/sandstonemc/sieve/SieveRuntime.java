@@ -0,0 +1,177 @@
+package dev.sandstonemc.sieve;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs many guest modules side by side, each in its own {@link SieveClassLoader}. Every loader shares one
+ * {@link HostClassAccess} and one table of exported packages, so a module costs little more than its own classes and
+ * can be removed without affecting the others. A module can use the classes in packages exported by other modules, and
+ * everything else outside of the module is subject to the host access.
+ */
+public final class SieveRuntime {
+
+    private final HostClassAccess hostAccess;
+    private final ClassLoader root;
+    private final Map<String, Module> modules = new LinkedHashMap<>();
+
+    /**
+     * The packages exported by each module. This is replaced whenever a module is added or removed, so lookups never
+     * lock.
+     */
+    private volatile ExportTable exports = new ExportTable(List.of());
+
+    /**
+     * Creates a runtime. The host access is shared by every module, so rules added to it later apply to every module.
+     *
+     * @param hostAccess The host classes that guest modules may access.
+     */
+    public SieveRuntime(HostClassAccess hostAccess) {
+        this(hostAccess, SieveClassLoader.class.getClassLoader());
+    }
+
+    public SieveRuntime(HostClassAccess hostAccess, ClassLoader root) {
+        this.hostAccess = hostAccess;
+        this.root = root;
+    }
+
+    /**
+     * Adds a guest module to the runtime. The name of the provider is used as the name of the module.
+     *
+     * @param guestAccess      The classes of the module.
+     * @param exportedPackages The packages of the module that other modules may use. Subpackages are not included.
+     * @return The class loader of the module.
+     * @throws IllegalStateException If a module with the same name has been added, or a package is already exported
+     *                               by another module.
+     */
+    public synchronized SieveClassLoader addModule(GuestClassProvider guestAccess, Collection<String> exportedPackages) {
+        final String name = guestAccess.getName();
+        if (this.modules.containsKey(name)) {
+            throw new IllegalStateException("A module named '" + name + "' has already been added.");
+        }
+        for (Module module : this.modules.values()) {
+            for (String packageName : exportedPackages) {
+                if (module.exportedPackages.contains(packageName)) {
+                    throw new IllegalStateException("Module '" + name + "' can not export package '" + packageName + "', it is already exported by '" + module.loader.getName() + "'.");
+                }
+            }
+        }
+        final SieveClassLoader loader = new SieveClassLoader(guestAccess, this.hostAccess, this.root, this);
+        this.modules.put(name, new Module(guestAccess, loader, Set.copyOf(exportedPackages)));
+        this.exports = new ExportTable(this.modules.values());
+        return loader;
+    }
+
+    /**
+     * Removes a guest module from the runtime. Its exported packages can no longer be used by modules that have not
+     * already linked against them, and the module can be unloaded once the host drops its references to it.
+     *
+     * @param name The name of the module.
+     * @return True if the module was removed.
+     */
+    public synchronized boolean removeModule(String name) {
+        if (this.modules.remove(name) == null) {
+            return false;
+        }
+        this.exports = new ExportTable(this.modules.values());
+        return true;
+    }
+
+    /**
+     * @param name The name of the module.
+     * @return The class loader of the module, or null if no module has the name.
+     */
+    public synchronized SieveClassLoader getClassLoader(String name) {
+        final Module module = this.modules.get(name);
+        return module != null ? module.loader : null;
+    }
+
+    /**
+     * @return The names of every module in the order they were added.
+     */
+    public synchronized List<String> getModuleNames() {
+        return new ArrayList<>(this.modules.keySet());
+    }
+
+    /**
+     * Checks every class in a module for references to classes that it can not access. Classes in packages exported by
+     * other modules of the runtime are accessible, as are the host classes allowed by the host access.
+     *
+     * @param name The name of the module.
+     * @throws ProhibitedClassException If any class references a prohibited class. Every prohibited reference is
+     *                                  attached as a suppressed exception.
+     */
+    public void verify(String name) throws ProhibitedClassException {
+        final Module module;
+        synchronized (this) {
+            module = this.modules.get(name);
+        }
+        if (module == null) {
+            throw new IllegalArgumentException("No module named '" + name + "' has been added.");
+        }
+        GuestClassProvider.throwProhibited(module.guestAccess.findProhibitedReferences(this.exports::contains, this.hostAccess, this.root, null));
+    }
+
+    /**
+     * @return The host access shared by every module.
+     */
+    public HostClassAccess getHostAccess() {
+        return this.hostAccess;
+    }
+
+    /**
+     * Finds the module that exports the package of a class.
+     *
+     * @param className The fully qualified name of the class.
+     * @return The class loader of the module, or null if the package is not exported.
+     */
+    SieveClassLoader findExporter(String className) {
+        final Module exporter = this.exports.find(className);
+        return exporter != null ? exporter.loader : null;
+    }
+
+    private record Module(GuestClassProvider guestAccess, SieveClassLoader loader, Set<String> exportedPackages) {
+    }
+
+    /**
+     * An immutable table from exported package to the module that exports it. Packages are looked up by
+     * the range of the class name before its last dot, so a lookup does not create a substring.
+     */
+    private static final class ExportTable {
+
+        private final CharRangeSet packages;
+        private final Module[] exporters;
+
+        private ExportTable(Collection<Module> modules) {
+            final List<String> packages = new ArrayList<>();
+            for (Module module : modules) {
+                packages.addAll(module.exportedPackages);
+            }
+            this.packages = new CharRangeSet(packages);
+            this.exporters = new Module[this.packages.capacity()];
+            for (Module module : modules) {
+                for (String packageName : module.exportedPackages) {
+                    this.exporters[this.packages.slot(packageName)] = module;
+                }
+            }
+        }
+
+        private Module find(String className) {
+            if (this.packages.size() == 0) {
+                return null;
+            }
+            final int slot = this.packages.slot(className, 0, Math.max(className.lastIndexOf('.'), 0));
+            return slot >= 0 ? this.exporters[slot] : null;
+        }
+
+        // Checks if an exporting module contains a class, not just its package.
+        private boolean contains(String className) {
+            final Module exporter = this.find(className);
+            return exporter != null && exporter.guestAccess.contains(className);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package dev.sandstonemc.sieve;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compares and decodes UTF-8 names stored in buffers without first converting them to strings. Names are compared by
+ * their UTF-16 code units, so UTF-8 names sorted with these methods are in the same order as the equivalent strings.
+ */
+final class Utf8 {
+
+    private Utf8() {
+    }
+
+    /**
+     * Compares a UTF-8 name in a buffer to a string.
+     *
+     * @param bytes  The buffer holding the name.
+     * @param offset The absolute offset of the name in the buffer.
+     * @param length The length of the name in bytes.
+     * @param value  The string to compare to.
+     * @return A negative number, zero, or a positive number if the name is less than, equal to, or greater than the
+     * string, using the same order as {@link String#compareTo(String)}.
+     */
+    static int compare(ByteBuffer bytes, int offset, int length, String value) {
+        final int end = offset + length;
+        int position = offset;
+        int index = 0;
+        // A supplementary character decodes to two code units, the low
+        // surrogate is held here until it has been compared.
+        char pending = 0;
+        while (position < end || pending != 0) {
+            final char c;
+            if (pending != 0) {
+                c = pending;
+                pending = 0;
+            }
+            else {
+                final int b = bytes.get(position++);
+                if (b >= 0) {
+                    c = (char) b;
+                }
+                else if ((b & 0xE0) == 0xC0) {
+                    c = (char) (((b & 0x1F) << 6) | (bytes.get(position++) & 0x3F));
+                }
+                else if ((b & 0xF0) == 0xE0) {
+                    c = (char) (((b & 0x0F) << 12) | ((bytes.get(position++) & 0x3F) << 6) | (bytes.get(position++) & 0x3F));
+                }
+                else {
+                    final int codePoint = ((b & 0x07) << 18) | ((bytes.get(position++) & 0x3F) << 12) | ((bytes.get(position++) & 0x3F) << 6) | (bytes.get(position++) & 0x3F);
+                    c = Character.highSurrogate(codePoint);
+                    pending = Character.lowSurrogate(codePoint);
+                }
+            }
+            if (index == value.length()) {
+                return 1;
+            }
+            final char other = value.charAt(index++);
+            if (c != other) {
+                return c - other;
+            }
+        }
+        return index - value.length();
+    }
+
+    /**
+     * Decodes a UTF-8 name in a buffer.
+     *
+     * @param bytes  The buffer holding the name.
+     * @param offset The absolute offset of the name in the buffer.
+     * @param length The length of the name in bytes.
+     * @return The decoded name.
+     */
+    static String decode(ByteBuffer bytes, int offset, int length) {
+        final byte[] name = new byte[length];
+        bytes.get(offset, name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,255 @@
+package dev.sandstonemc.sieve;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers which guest classes have already passed verification so they do not need to be scanned again on the next
+ * start. Classes are identified by a SHA-256 hash of their bytes, so a class that changes is verified again. Results
+ * are only valid for the host access they were produced with. When the cache is used with a host access that has a
+ * different fingerprint, every previous result is discarded.
+ * <p>
+ * Results also depend on the members of the host classes that guest classes reference, which change when the host is
+ * updated without changing its rules. The cache keeps a digest of the members of every host class a result looked up,
+ * and every previous result is discarded when one of them differs. Results that rely on classes of other guest modules
+ * are not cached, as those modules are not part of the hash.
+ * <p>
+ * The cache only allows verification to be skipped. Host classes are still checked by {@link SieveClassLoader} when
+ * they are loaded.
+ */
+public final class VerificationCache {
+
+    private static final int MAGIC = 0x53564331; // SVC1
+    private static final int VERSION = 3;
+    private static final int DIGEST_LENGTH = 32;
+
+    private final Path path;
+    private final Set<Digest> verified = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The digest of the members of each host class looked up by a cached result, by fully qualified name.
+     */
+    private final Map<String, Digest> hostClasses = new ConcurrentHashMap<>();
+    private byte[] fingerprint = new byte[DIGEST_LENGTH];
+
+    private VerificationCache(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Loads a cache from a file. If the file does not exist, or can not be read, an empty cache is created that will
+     * be written to the file when it is saved.
+     *
+     * @param path The path of the cache file.
+     * @return The loaded cache.
+     */
+    public static VerificationCache load(Path path) {
+        final VerificationCache cache = new VerificationCache(path);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return cache;
+            }
+            final byte[] fingerprint = new byte[DIGEST_LENGTH];
+            in.readFully(fingerprint);
+            final byte[] digest = new byte[DIGEST_LENGTH];
+            final int hostClasses = in.readInt();
+            for (int index = 0; index < hostClasses; index++) {
+                final String className = in.readUTF();
+                in.readFully(digest);
+                cache.hostClasses.put(className, Digest.of(digest));
+            }
+            final int count = in.readInt();
+            for (int index = 0; index < count; index++) {
+                in.readFully(digest);
+                cache.verified.add(Digest.of(digest));
+            }
+            cache.fingerprint = fingerprint;
+        }
+        catch (NoSuchFileException e) {
+            return cache;
+        }
+        catch (IOException e) {
+            // A corrupt cache is treated as empty, it only costs the time to
+            // verify everything again.
+            cache.verified.clear();
+            cache.hostClasses.clear();
+        }
+        return cache;
+    }
+
+    /**
+     * Writes the cache to its file. The file is replaced atomically where supported so a crash while saving does not
+     * leave a partial cache behind.
+     *
+     * @throws IOException If the file could not be written.
+     */
+    public void save() throws IOException {
+        final Path parent = this.path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        final Path temp = this.path.resolveSibling(this.path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            synchronized (this) {
+                out.write(this.fingerprint);
+            }
+            // Results are added after the host classes they looked up, so the
+            // host classes are copied last to include those of every result.
+            final Digest[] digests = this.verified.toArray(new Digest[0]);
+            final Map<String, Digest> hostClasses = new TreeMap<>(this.hostClasses);
+            out.writeInt(hostClasses.size());
+            for (Map.Entry<String, Digest> entry : hostClasses.entrySet()) {
+                out.writeUTF(entry.getKey());
+                entry.getValue().write(out);
+            }
+            out.writeInt(digests.length);
+            for (Digest digest : digests) {
+                digest.write(out);
+            }
+        }
+        try {
+            Files.move(temp, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            Files.move(temp, this.path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * @return The number of classes that are known to have passed verification.
+     */
+    public int size() {
+        return this.verified.size();
+    }
+
+    /**
+     * Discards previous results if they were produced with a different host access, or if a host class they looked up
+     * has different members.
+     *
+     * @param hostAccess  The host access that classes are about to be verified against.
+     * @param hostMembers The members of host classes that classes are about to be verified against.
+     */
+    synchronized void bind(HostClassAccess hostAccess, HostMemberTable hostMembers) {
+        final byte[] fingerprint = hostAccess.fingerprint();
+        if (!Arrays.equals(this.fingerprint, fingerprint) || !this.matches(hostMembers)) {
+            this.verified.clear();
+            this.hostClasses.clear();
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    private boolean matches(HostMemberTable hostMembers) {
+        for (Map.Entry<String, Digest> entry : this.hostClasses.entrySet()) {
+            if (!hostMembers.digest(entry.getKey()).equals(entry.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if a class has already passed verification.
+     *
+     * @param digest The hash of the class bytes.
+     * @return If the class has passed verification.
+     */
+    boolean isVerified(Digest digest) {
+        return this.verified.contains(digest);
+    }
+
+    /**
+     * Records that a class has passed verification.
+     *
+     * @param digest      The hash of the class bytes.
+     * @param hostClasses The digest of the members of each host class that was looked up while verifying the class.
+     */
+    void markVerified(Digest digest, Map<String, Digest> hostClasses) {
+        this.hostClasses.putAll(hostClasses);
+        this.verified.add(digest);
+    }
+
+    /**
+     * Creates a new SHA-256 message digest.
+     *
+     * @return The message digest.
+     */
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A SHA-256 hash of some class bytes.
+     */
+    record Digest(long a, long b, long c, long d) {
+
+        /**
+         * Hashes the remaining bytes of a buffer. The position of the buffer is not changed.
+         *
+         * @param bytes The bytes to hash.
+         * @return The hash of the bytes.
+         */
+        static Digest hash(ByteBuffer bytes) {
+            final MessageDigest digest = sha256();
+            digest.update(bytes.duplicate());
+            return of(digest.digest());
+        }
+
+        /**
+         * Hashes a sequence of digests into a single digest.
+         *
+         * @param digests The digests to combine, in order.
+         * @return The combined hash.
+         */
+        static Digest combine(Iterable<Digest> digests) {
+            final MessageDigest digest = sha256();
+            final ByteBuffer buffer = ByteBuffer.allocate(DIGEST_LENGTH);
+            for (Digest part : digests) {
+                buffer.clear();
+                buffer.putLong(part.a).putLong(part.b).putLong(part.c).putLong(part.d).flip();
+                digest.update(buffer);
+            }
+            return of(digest.digest());
+        }
+
+        /**
+         * Reads a digest from the bytes produced by a message digest.
+         *
+         * @param digest The 32 bytes of a SHA-256 hash.
+         * @return The digest.
+         */
+        static Digest of(byte[] digest) {
+            final ByteBuffer buffer = ByteBuffer.wrap(digest);
+            return new Digest(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeLong(this.a);
+            out.writeLong(this.b);
+            out.writeLong(this.c);
+            out.writeLong(this.d);
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package dev.sandstonemc.sieve.stress;
+
+import dev.sandstonemc.sieve.ClassLoadTrace;
+import dev.sandstonemc.sieve.GuestAccounting;
+import dev.sandstonemc.sieve.GuestClassProvider;
+import dev.sandstonemc.sieve.HostClassAccess;
+import dev.sandstonemc.sieve.ProhibitedClassException;
+import dev.sandstonemc.sieve.SieveClassLoader;
+import dev.sandstonemc.sieve.SieveMetrics;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+
+/**
+ * Loads large numbers of generated guest classes through {@link SieveClassLoader} from many threads at once. Each
+ * thread loads every class in its own random order and calls it, so most classes are requested by several threads
+ * while their superclasses and dependencies are being loaded by others. The harness fails if a class is defined more
+ * than once, if two threads see different classes for the same name, if a class returns the wrong value, or if the
+ * classes that fail on prohibited host access differ from the ones that were generated to fail, if replaying a load
+ * trace changes the trace recorded alongside it, or if classes rewritten for {@link GuestAccounting} fail or do not
+ * enter and leave their module once per call. Throughput is reported for each combination of class and thread
+ * count.
+ * <p>
+ * Run with {@code gradle stress --args="classes=1000,10000 threads=1,8,32"}, see {@link StressOptions} for every
+ * option.
+ */
+public final class SieveStress {
+
+    private static final MethodType RUN = MethodType.methodType(int.class);
+
+    private final StressOptions options;
+    private final List<StressClasses.Spec> specs;
+    private final HostClassAccess host;
+    private final Path root;
+    private final Queue<String> failures = new ConcurrentLinkedQueue<>();
+
+    private SieveStress(StressOptions options, Path root) {
+        this.options = options;
+        this.specs = StressClasses.generate(options);
+        this.root = root;
+        this.host = new HostClassAccess();
+        this.host.allowJDK();
+        this.host.freeze();
+    }
+
+    public static void main(String... args) throws Exception {
+        final StressOptions options = StressOptions.parse(args);
+        final Path root = Files.createTempDirectory("sieve-stress");
+        try {
+            final SieveStress stress = new SieveStress(options, root);
+            System.out.println("Sieve stress " + options);
+            StressClasses.write(root, stress.specs);
+            stress.checkVerification();
+            stress.checkTraceReplay();
+            stress.checkAccounting();
+            for (int classCount : options.classCounts()) {
+                for (int threadCount : options.threadCounts()) {
+                    stress.run(classCount, threadCount);
+                }
+            }
+            if (!stress.failures.isEmpty()) {
+                System.out.println(stress.failures.size() + " failures, showing the first 20.");
+                stress.failures.stream().limit(20).forEach(failure -> System.out.println("  " + failure));
+                System.exit(1);
+            }
+            System.out.println("No failures.");
+        }
+        finally {
+            StressClasses.delete(root);
+        }
+    }
+
+    // Verification must report exactly the generated prohibited references,
+    // in the same order every time.
+    private void checkVerification() {
+        final List<String> expected = new ArrayList<>();
+        for (StressClasses.Spec spec : this.specs) {
+            if (spec.prohibited()) {
+                expected.add(ProhibitedClassException.referencedBy(spec.name(), StressClasses.PROHIBITED_CLASS).getMessage());
+            }
+        }
+        Collections.sort(expected);
+        final GuestClassProvider guest = this.newProvider(null);
+        for (int attempt = 0; attempt < 3; attempt++) {
+            final List<String> found = guest.findProhibitedReferences(this.host).stream().map(Throwable::getMessage).toList();
+            if (!found.equals(expected)) {
+                this.failures.add("Verification found " + found.size() + " prohibited references, expected " + expected.size() + ".");
+                return;
+            }
+        }
+        System.out.println("Verification found the " + expected.size() + " expected prohibited references.");
+    }
+
+    // A trace recorded while the previous one is replayed must hold the same
+    // classes, even though the JVM resolves preloaded classes without asking
+    // the loader. Only the last classes are called, so the classes they
+    // depend on are only ever reached through resolution.
+    private void checkTraceReplay() {
+        final List<StressClasses.Spec> entries = this.specs.subList(Math.max(0, this.specs.size() - 16), this.specs.size());
+        ClassLoadTrace previous = null;
+        Set<String> expected = null;
+        for (int replay = 0; replay < 3; replay++) {
+            final ClassLoadTrace trace = new ClassLoadTrace();
+            final GuestClassProvider guest = this.newProvider(null);
+            guest.setLoadTrace(trace);
+            final SieveClassLoader loader = new SieveClassLoader(guest, this.host);
+            if (previous != null) {
+                loader.preload(previous, ForkJoinPool.commonPool(), 2).join();
+            }
+            final Map<String, Class<?>> seen = new ConcurrentHashMap<>();
+            for (StressClasses.Spec spec : entries) {
+                this.loadAndCall(loader, seen, spec);
+            }
+            final Set<String> recorded = Set.copyOf(trace.getClassNames());
+            if (expected == null) {
+                expected = recorded;
+            }
+            else if (!recorded.equals(expected)) {
+                this.failures.add("Replay " + replay + " recorded " + recorded.size() + " classes, expected " + expected.size() + ".");
+                return;
+            }
+            previous = trace;
+        }
+        System.out.println("Replaying a load trace recorded the same " + expected.size() + " classes.");
+    }
+
+    // Every class is rewritten and called twice from the host. Each call must
+    // enter the module exactly once, including calls that fail, or the thread
+    // did not return to the host and later calls are not counted.
+    private void checkAccounting() {
+        final GuestClassProvider guest = this.newProvider(null);
+        guest.setAccounting(true);
+        final SieveClassLoader loader = new SieveClassLoader(guest, this.host);
+        final Map<String, Class<?>> seen = new ConcurrentHashMap<>();
+        final long before = entries(guest.getName());
+        for (int pass = 0; pass < 2; pass++) {
+            for (StressClasses.Spec spec : this.specs) {
+                this.loadAndCall(loader, seen, spec);
+            }
+        }
+        final long entered = entries(guest.getName()) - before;
+        if (entered != 2L * this.specs.size()) {
+            this.failures.add("Accounted classes entered their module " + entered + " times, expected " + 2L * this.specs.size() + ".");
+            return;
+        }
+        System.out.println("Accounted classes entered their module once for each of the " + entered + " calls.");
+    }
+
+    private static long entries(String module) {
+        final GuestAccounting.Usage usage = GuestAccounting.snapshot(module);
+        return usage != null ? usage.entries() : 0;
+    }
+
+    private void run(int classCount, int threadCount) throws Exception {
+        long best = Long.MAX_VALUE;
+        final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            for (int round = 0; round < this.options.rounds(); round++) {
+                best = Math.min(best, this.round(executor, classCount, threadCount, round));
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        final double millis = best / 1_000_000.0;
+        System.out.printf(Locale.ROOT, "classes=%d threads=%d time=%.1fms defined=%.0f classes/s lookups=%.0f/s%n",
+                classCount, threadCount, millis, classCount / (millis / 1000), (double) classCount * threadCount / (millis / 1000));
+    }
+
+    // Loads and runs the first classes from a fresh loader on every thread,
+    // returning the time taken.
+    private long round(ExecutorService executor, int classCount, int threadCount, int round) throws Exception {
+        final SieveMetrics metrics = new SieveMetrics();
+        final GuestClassProvider guest = this.newProvider(metrics);
+        final SieveClassLoader loader = new SieveClassLoader(guest, this.host);
+        final Map<String, Class<?>> seen = new ConcurrentHashMap<>();
+        final CountDownLatch ready = new CountDownLatch(threadCount);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<?>> tasks = new ArrayList<>(threadCount);
+        for (int thread = 0; thread < threadCount; thread++) {
+            final List<Integer> order = new ArrayList<>(IntStream.range(0, classCount).boxed().toList());
+            Collections.shuffle(order, new Random(this.options.seed() * 31 + round * 1024L + thread));
+            tasks.add(executor.submit(() -> {
+                ready.countDown();
+                start.await();
+                for (int index : order) {
+                    this.loadAndCall(loader, seen, this.specs.get(index));
+                }
+                return null;
+            }));
+        }
+        ready.await();
+        final long begin = System.nanoTime();
+        start.countDown();
+        for (Future<?> task : tasks) {
+            task.get();
+        }
+        final long time = System.nanoTime() - begin;
+        final SieveMetrics.ModuleSnapshot snapshot = metrics.snapshot().modules().get(guest.getName());
+        final long defined = snapshot != null ? snapshot.classesDefined() : 0;
+        if (defined != classCount || seen.size() != classCount) {
+            this.failures.add("Defined " + defined + " classes and saw " + seen.size() + " distinct classes, expected " + classCount + ".");
+        }
+        return time;
+    }
+
+    private void loadAndCall(SieveClassLoader loader, Map<String, Class<?>> seen, StressClasses.Spec spec) {
+        final Class<?> loaded;
+        try {
+            loaded = loader.loadClass(spec.name());
+        }
+        catch (ClassNotFoundException | LinkageError e) {
+            this.failures.add("Could not load " + spec.name() + ": " + e);
+            return;
+        }
+        final Class<?> previous = seen.putIfAbsent(spec.name(), loaded);
+        if (previous != null && previous != loaded) {
+            this.failures.add("Two different classes were loaded for " + spec.name() + ".");
+        }
+        if (loaded.getClassLoader() != loader) {
+            this.failures.add(spec.name() + " was defined by " + loaded.getClassLoader() + ".");
+        }
+        // Method handles are used rather than reflection, as reflection on
+        // JDK 17 generates accessor classes that are loaded through the guest
+        // loader once a method has been called a few times.
+        final int value;
+        try {
+            value = (int) MethodHandles.publicLookup().findStatic(loaded, "run", RUN).invokeExact();
+        }
+        catch (NoSuchMethodException | IllegalAccessException e) {
+            this.failures.add("Could not call " + spec.name() + ": " + e);
+            return;
+        }
+        catch (Throwable e) {
+            if (!spec.prohibited() || !isProhibited(e)) {
+                this.failures.add(spec.name() + " failed unexpectedly: " + e);
+            }
+            return;
+        }
+        if (spec.prohibited()) {
+            this.failures.add(spec.name() + " ran even though it calls a prohibited class.");
+        }
+        else if (value != spec.expected()) {
+            this.failures.add(spec.name() + " returned " + value + ", expected " + spec.expected() + ".");
+        }
+    }
+
+    // Resolution errors are remembered by the JVM, so only the first call
+    // sees the original exception as the cause. Later calls get an error
+    // naming the class.
+    private static boolean isProhibited(Throwable error) {
+        if (!(error instanceof NoClassDefFoundError)) {
+            return false;
+        }
+        if (error.getCause() instanceof ProhibitedClassException prohibited) {
+            return prohibited.getClassName().equals(StressClasses.PROHIBITED_CLASS);
+        }
+        final String message = String.valueOf(error.getMessage());
+        return message.contains(StressClasses.PROHIBITED_CLASS) || message.contains(StressClasses.PROHIBITED_CLASS.replace('.', '/'));
+    }
+
+    private GuestClassProvider newProvider(SieveMetrics metrics) {
+        final GuestClassProvider guest = new GuestClassProvider("stress");
+        guest.reserveJDK();
+        guest.setStorage(this.options.storage());
+        guest.setAccounting(this.options.accounting());
+        if (metrics != null) {
+            guest.setMetrics(metrics);
+        }
+        guest.addDir(this.root);
+        return guest;
+    }
+}
@@ -0,0 +1,338 @@
+package dev.sandstonemc.sieve.stress;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Generates guest classes for the stress harness. Classes form a random graph where each class may extend and call
+ * classes with a lower index, so any prefix of the classes can be loaded on its own. Every class has a constructor and
+ * two static methods, {@code id()} which returns the index of the class, and {@code run()} which counts to three in a
+ * loop, creates an instance of its class, calls {@code id()} on each of its dependencies and returns the sum. Some
+ * classes also call an allowed host method, and some call a prohibited one so that {@code run()} always fails for them.
+ */
+final class StressClasses {
+
+    private static final String ALLOWED_OWNER = "java/lang/Math";
+    private static final String PROHIBITED_OWNER = "java/lang/System";
+
+    /**
+     * The host class referenced by classes that are expected to fail.
+     */
+    static final String PROHIBITED_CLASS = PROHIBITED_OWNER.replace('/', '.');
+
+    private StressClasses() {
+    }
+
+    /**
+     * A single generated class.
+     *
+     * @param index        The index of the class.
+     * @param superclass   The index of the superclass, or -1 if the class extends {@link Object}.
+     * @param dependencies The indexes of the classes called by {@code run()}.
+     * @param allowedHost  If {@code run()} calls an allowed host method.
+     * @param prohibited   If {@code run()} calls a prohibited host method.
+     */
+    record Spec(int index, int superclass, int[] dependencies, boolean allowedHost, boolean prohibited) {
+
+        /**
+         * @return The fully qualified name of the class.
+         */
+        String name() {
+            return StressClasses.name(this.index);
+        }
+
+        /**
+         * @return The value {@code run()} returns when it does not fail.
+         */
+        int expected() {
+            int value = this.index;
+            for (int dependency : this.dependencies) {
+                value += dependency;
+            }
+            return this.allowedHost ? value + 1 : value;
+        }
+    }
+
+    /**
+     * Gets the fully qualified name of a generated class. Classes are spread over a few packages so lookups are not all
+     * in the same subtree.
+     *
+     * @param index The index of the class.
+     * @return The name of the class.
+     */
+    static String name(int index) {
+        return "com.example.stress.p" + (index % 32) + ".Stress" + index;
+    }
+
+    /**
+     * Creates a random graph of classes. The same options and seed always create the same graph.
+     *
+     * @param options The options of the harness.
+     * @return The classes, ordered by index.
+     */
+    static List<Spec> generate(StressOptions options) {
+        final Random random = new Random(options.seed());
+        final int count = options.maxClasses();
+        final List<Spec> specs = new ArrayList<>(count);
+        for (int index = 0; index < count; index++) {
+            final int superclass = index > 0 && random.nextDouble() < options.inheritRatio() ? random.nextInt(index) : -1;
+            final int[] dependencies = new int[index > 0 ? random.nextInt(options.dependencies() + 1) : 0];
+            for (int dependency = 0; dependency < dependencies.length; dependency++) {
+                dependencies[dependency] = random.nextInt(index);
+            }
+            final boolean allowedHost = random.nextDouble() < options.hostRatio();
+            final boolean prohibited = random.nextDouble() < options.prohibitedRatio();
+            specs.add(new Spec(index, superclass, dependencies, allowedHost, prohibited));
+        }
+        return specs;
+    }
+
+    /**
+     * Writes the classes to a directory using the normal package layout.
+     *
+     * @param root  The directory to write to.
+     * @param specs The classes to write.
+     */
+    static void write(Path root, List<Spec> specs) {
+        try {
+            for (Spec spec : specs) {
+                final Path file = root.resolve(spec.name().replace('.', '/') + ".class");
+                Files.createDirectories(file.getParent());
+                Files.write(file, create(spec));
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Deletes a directory of generated classes.
+     *
+     * @param root The directory to delete.
+     */
+    static void delete(Path root) {
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Creates the bytes of a class. The loop in {@code run()} gives it a stack map table, so rewriting a class for
+     * accounting has frames to relocate.
+     *
+     * @param spec The class to create.
+     * @return The class file.
+     */
+    static byte[] create(Spec spec) {
+        final ConstantPool pool = new ConstantPool();
+        final int thisClass = pool.classRef(internalName(spec.index()));
+        final int superClass = pool.classRef(spec.superclass() >= 0 ? internalName(spec.superclass()) : "java/lang/Object");
+        final int code = pool.utf8("Code");
+        final int stackMapTable = pool.utf8("StackMapTable");
+        final ByteArrayOutputStream init = new ByteArrayOutputStream();
+        init.write(0x2A); // aload_0
+        invoke(init, 0xB7, pool.methodRef(spec.superclass() >= 0 ? internalName(spec.superclass()) : "java/lang/Object", "<init>", "()V"));
+        init.write(0xB1); // return
+        final ByteArrayOutputStream id = new ByteArrayOutputStream();
+        constant(id, pool.integer(spec.index()));
+        id.write(0xAC); // ireturn
+        final ByteArrayOutputStream run = new ByteArrayOutputStream();
+        run.write(new byte[] {
+                0x03, // iconst_0
+                0x3B, // istore_0
+                0x1A, // iload_0
+                0x06, // iconst_3
+                (byte) 0xA2, 0x00, 0x09, // if_icmpge +9
+                (byte) 0x84, 0x00, 0x01, // iinc 0 1
+                (byte) 0xA7, (byte) 0xFF, (byte) 0xF8, // goto -8
+        }, 0, 13);
+        run.write(0xBB); // new
+        run.write(thisClass >> 8);
+        run.write(thisClass);
+        run.write(0x59); // dup
+        invoke(run, 0xB7, pool.methodRef(internalName(spec.index()), "<init>", "()V"));
+        run.write(0x57); // pop
+        constant(run, pool.integer(spec.index()));
+        for (int dependency : spec.dependencies()) {
+            invoke(run, 0xB8, pool.methodRef(internalName(dependency), "id", "()I"));
+            run.write(0x60); // iadd
+        }
+        if (spec.allowedHost()) {
+            run.write(0x02); // iconst_m1
+            invoke(run, 0xB8, pool.methodRef(ALLOWED_OWNER, "abs", "(I)I"));
+            run.write(0x60); // iadd
+        }
+        if (spec.prohibited()) {
+            invoke(run, 0xB8, pool.methodRef(PROHIBITED_OWNER, "nanoTime", "()J"));
+            run.write(0x58); // pop2
+        }
+        run.write(0xAC); // ireturn
+        // The loop starts with the counter as a new local, and ends with the
+        // same locals.
+        final byte[] frames = {
+                0x00, 0x02, // frames
+                (byte) 252, 0x00, 0x02, 0x01, // append_frame at 2, int
+                0x0A, // same_frame at 13
+        };
+        final int initName = pool.utf8("<init>");
+        final int initDescriptor = pool.utf8("()V");
+        final int idName = pool.utf8("id");
+        final int runName = pool.utf8("run");
+        final int descriptor = pool.utf8("()I");
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(52);
+            pool.write(out);
+            out.writeShort(0x0021); // public super
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // interfaces
+            out.writeShort(0); // fields
+            out.writeShort(3); // methods
+            writeMethod(out, 0x0001, initName, initDescriptor, code, init.toByteArray(), 1, stackMapTable, null); // public
+            writeMethod(out, 0x0009, idName, descriptor, code, id.toByteArray(), 0, stackMapTable, null); // public static
+            writeMethod(out, 0x0009, runName, descriptor, code, run.toByteArray(), 1, stackMapTable, frames); // public static
+            out.writeShort(0); // attributes
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static String internalName(int index) {
+        return name(index).replace('.', '/');
+    }
+
+    private static void writeMethod(DataOutputStream out, int access, int name, int descriptor, int codeName, byte[] code, int maxLocals,
+                                    int stackMapName, byte[] frames) throws IOException {
+        out.writeShort(access);
+        out.writeShort(name);
+        out.writeShort(descriptor);
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(12 + code.length + (frames != null ? 6 + frames.length : 0));
+        out.writeShort(4); // max stack
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0); // exceptions
+        if (frames != null) {
+            out.writeShort(1); // attributes
+            out.writeShort(stackMapName);
+            out.writeInt(frames.length);
+            out.write(frames);
+        }
+        else {
+            out.writeShort(0); // attributes
+        }
+    }
+
+    private static void constant(ByteArrayOutputStream code, int index) {
+        code.write(0x13); // ldc_w
+        code.write(index >> 8);
+        code.write(index);
+    }
+
+    private static void invoke(ByteArrayOutputStream code, int opcode, int index) {
+        code.write(opcode);
+        code.write(index >> 8);
+        code.write(index);
+    }
+
+    /**
+     * A constant pool that reuses identical entries.
+     */
+    private static final class ConstantPool {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(this.bytes);
+        private final Map<String, Integer> entries = new HashMap<>();
+        private int count = 1;
+
+        private int utf8(String value) {
+            return this.entry("utf8:" + value, out -> {
+                out.writeByte(1);
+                out.writeUTF(value);
+            });
+        }
+
+        private int integer(int value) {
+            return this.entry("int:" + value, out -> {
+                out.writeByte(3);
+                out.writeInt(value);
+            });
+        }
+
+        private int classRef(String name) {
+            final int utf8 = this.utf8(name);
+            return this.entry("class:" + name, out -> {
+                out.writeByte(7);
+                out.writeShort(utf8);
+            });
+        }
+
+        private int methodRef(String owner, String name, String descriptor) {
+            final int ownerClass = this.classRef(owner);
+            final int nameIndex = this.utf8(name);
+            final int descriptorIndex = this.utf8(descriptor);
+            final int nameAndType = this.entry("nat:" + name + descriptor, out -> {
+                out.writeByte(12);
+                out.writeShort(nameIndex);
+                out.writeShort(descriptorIndex);
+            });
+            return this.entry("method:" + owner + '.' + name + descriptor, out -> {
+                out.writeByte(10);
+                out.writeShort(ownerClass);
+                out.writeShort(nameAndType);
+            });
+        }
+
+        private int entry(String key, Writer writer) {
+            final Integer existing = this.entries.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            try {
+                writer.write(this.out);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            final int index = this.count++;
+            this.entries.put(key, index);
+            return index;
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeShort(this.count);
+            this.out.flush();
+            this.bytes.writeTo(out);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Writer {
+
+        void write(DataOutputStream out) throws IOException;
+    }
+}
@@ -0,0 +1,85 @@
+package dev.sandstonemc.sieve.stress;
+
+import dev.sandstonemc.sieve.GuestClassProvider;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * The options of the stress harness. Options are given as {@code name=value} arguments, and lists are separated with
+ * commas, for example {@code classes=1000,10000 threads=1,8,32 prohibited=0.01}.
+ *
+ * @param classCounts     The numbers of classes to load, each count is run with every thread count.
+ * @param threadCounts    The numbers of threads that load classes at once.
+ * @param dependencies    The maximum number of classes each class calls.
+ * @param inheritRatio    The fraction of classes that extend another generated class.
+ * @param hostRatio       The fraction of classes that call an allowed host method.
+ * @param prohibitedRatio The fraction of classes that call a prohibited host method.
+ * @param rounds          The number of times each combination is run. Throughput is reported for the fastest round.
+ * @param seed            The seed of the generated class graph.
+ * @param storage         How the provider stores the class bytes.
+ * @param accounting      If classes are rewritten for {@link dev.sandstonemc.sieve.GuestAccounting} in every round.
+ */
+record StressOptions(int[] classCounts, int[] threadCounts, int dependencies, double inheritRatio, double hostRatio,
+                     double prohibitedRatio, int rounds, long seed, GuestClassProvider.Storage storage, boolean accounting) {
+
+    /**
+     * Parses the options from command line arguments. Options that are not given use their defaults.
+     *
+     * @param args The arguments.
+     * @return The parsed options.
+     * @throws IllegalArgumentException If an argument is not a known option.
+     */
+    static StressOptions parse(String... args) {
+        int[] classCounts = {1000, 10000};
+        int[] threadCounts = {1, 2, 4, 8, 16};
+        int dependencies = 4;
+        double inheritRatio = 0.25;
+        double hostRatio = 0.5;
+        double prohibitedRatio = 0.01;
+        int rounds = 3;
+        long seed = 0x5133;
+        GuestClassProvider.Storage storage = GuestClassProvider.Storage.HEAP;
+        boolean accounting = false;
+        for (String arg : args) {
+            final int separator = arg.indexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Expected an option of the form name=value, got '" + arg + "'.");
+            }
+            final String value = arg.substring(separator + 1);
+            switch (arg.substring(0, separator)) {
+                case "classes" -> classCounts = parseInts(value);
+                case "threads" -> threadCounts = parseInts(value);
+                case "dependencies" -> dependencies = Integer.parseInt(value);
+                case "inherit" -> inheritRatio = Double.parseDouble(value);
+                case "host" -> hostRatio = Double.parseDouble(value);
+                case "prohibited" -> prohibitedRatio = Double.parseDouble(value);
+                case "rounds" -> rounds = Integer.parseInt(value);
+                case "seed" -> seed = Long.parseLong(value);
+                case "storage" -> storage = GuestClassProvider.Storage.valueOf(value.toUpperCase(Locale.ROOT));
+                case "accounting" -> accounting = Boolean.parseBoolean(value);
+                default -> throw new IllegalArgumentException("Unknown option '" + arg.substring(0, separator) + "'.");
+            }
+        }
+        return new StressOptions(classCounts, threadCounts, dependencies, inheritRatio, hostRatio, prohibitedRatio, rounds, seed, storage, accounting);
+    }
+
+    /**
+     * @return The largest number of classes that will be loaded.
+     */
+    int maxClasses() {
+        return Arrays.stream(this.classCounts).max().orElse(0);
+    }
+
+    @Override
+    public String toString() {
+        return "classes=" + Arrays.toString(this.classCounts) + " threads=" + Arrays.toString(this.threadCounts)
+                + " dependencies=" + this.dependencies + " inherit=" + this.inheritRatio + " host=" + this.hostRatio
+                + " prohibited=" + this.prohibitedRatio + " rounds=" + this.rounds + " seed=" + this.seed
+                + " storage=" + this.storage + " accounting=" + this.accounting;
+    }
+
+    private static int[] parseInts(String value) {
+        return Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray();
+    }
+}
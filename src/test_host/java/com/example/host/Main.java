@@ -16,6 +16,7 @@ public class Main {
         final HostClassAccess host = new HostClassAccess();
         host.allowJDK();
         host.allow("com.example.host.IPlugin");
+        host.freeze();
 
         // Collect classes from guest modules. For now, we are just manually
         // defining the class. In a future version we will collect them from
@@ -23,7 +24,7 @@ public class Main {
         final GuestClassProvider guest = new GuestClassProvider();
         guest.reserveJDK();
         guest.reserve("dev.sandstonemc.");
-        guest.addDir(Path.of("./build\\classes\\java\\test_guest")); // Make sure the project is built!
+        guest.addDir(Path.of("build", "classes", "java", "test_guest")); // Make sure the project is built!
 
         // Creates the sandboxed class loader to load guest module classes.
         // Host classes are loaded through the current class loader context.